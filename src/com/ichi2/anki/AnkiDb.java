@@ -23,12 +23,16 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import com.ichi2.libanki.Utils;
 import com.tomgibara.android.veecheck.util.PrefSettings;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Database layer for AnkiDroid. Can read the native Anki format through Android's SQLite driver.
@@ -37,12 +41,24 @@ public class AnkiDb {
 
     private static final String[] MOD_SQLS = new String[] { "insert", "update", "delete" };
 
+    /** number of compiled statements kept before the cache is emptied */
+    private static final int MAX_STATEMENTS = 64;
+
+    /** rows per transaction in executeMany() */
+    private static final int MANY_CHUNK_SIZE = 1000;
+
+    /** id sets up to this size are inlined as a literal list by idSet() */
+    private static final int ID_SET_INLINE_SIZE = 100;
+
     /**
      * The deck, which is actually an SQLite database.
      */
     private SQLiteDatabase mDatabase;
     private boolean mMod = false;
 
+    /** compiled statements by their SQL, see executeStatement() */
+    private HashMap<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
 
     /**
      * Open a database connection to an ".anki" SQLite file.
@@ -73,6 +89,7 @@ public class AnkiDb {
      */
     public void closeDatabase() {
         if (mDatabase != null) {
+            clearStatements();
             // set journal mode again to delete in order to make the db accessible for anki desktop and for full upload
             queryString("PRAGMA journal_mode = DELETE");
             mDatabase.close();
@@ -293,16 +310,168 @@ public class AnkiDb {
     }
 
 
+    /**
+     * Compiled statements *******************************************************************************************
+     */
+
+    /**
+     * Execute SQL, which has to insert, update or delete, with the given bind arguments. The statement is compiled once
+     * and reused by later calls with the same SQL, so the values must be passed as ? arguments and not concatenated
+     * into SQL.
+     */
+    public synchronized void executeStatement(String sql, Object[] args) {
+        SQLiteStatement statement = _statement(sql, args);
+        mMod = true;
+        statement.execute();
+    }
+
+
+    /** Like executeStatement(), but returns the row id of the inserted row. */
+    public synchronized long insertStatement(String sql, Object[] args) {
+        SQLiteStatement statement = _statement(sql, args);
+        mMod = true;
+        return statement.executeInsert();
+    }
+
+
+    /**
+     * Run the single value query SQL with the given bind arguments from a compiled statement, see executeStatement().
+     * 
+     * @return The value of the first column of the first row, or 0 if there is no row.
+     */
+    public synchronized long queryLongStatement(String sql, Object[] args) {
+        SQLiteStatement statement = _statement(sql, args);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return 0;
+        }
+    }
+
+
+    private SQLiteStatement _statement(String sql, Object[] args) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            if (mStatements.size() >= MAX_STATEMENTS) {
+                // more templates than expected; probably values concatenated into the SQL somewhere
+                Log.w(AnkiDroidApp.TAG, "AnkiDb - statement cache full, last statement: " + sql);
+                clearStatements();
+            }
+            statement = mDatabase.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        _bind(statement, args);
+        return statement;
+    }
+
+
+    private void _bind(SQLiteStatement statement, Object[] args) {
+        statement.clearBindings();
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                Object arg = args[i];
+                // bind indices are 1 based
+                if (arg == null) {
+                    statement.bindNull(i + 1);
+                } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short) {
+                    statement.bindLong(i + 1, ((Number) arg).longValue());
+                } else if (arg instanceof Double || arg instanceof Float) {
+                    statement.bindDouble(i + 1, ((Number) arg).doubleValue());
+                } else if (arg instanceof Boolean) {
+                    statement.bindLong(i + 1, ((Boolean) arg) ? 1 : 0);
+                } else if (arg instanceof byte[]) {
+                    statement.bindBlob(i + 1, (byte[]) arg);
+                } else {
+                    statement.bindString(i + 1, arg.toString());
+                }
+            }
+        }
+    }
+
+
+    /** Close all compiled statements. They are compiled again on their next use. */
+    public synchronized void clearStatements() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+
+    /** Receives the progress of executeMany(). */
+    public interface ProgressListener {
+        /** DONE of TOTAL rows have been executed. */
+        public void onProgress(int done, int total);
+    }
+
+
     public void executeMany(String sql, ArrayList<Object[]> list) {
+        executeMany(sql, list, null);
+    }
+
+
+    /**
+     * Execute SQL once for every row of bind arguments in LIST. The statement is compiled once and rebound for each
+     * row. If no transaction is open yet, the rows are written in transactions of {@link #MANY_CHUNK_SIZE} rows, so a
+     * large batch doesn't keep the journal growing and the database locked until the end; the batch is then not
+     * atomic as a whole. Inside an open transaction everything becomes part of it. LISTENER, if not null, is told
+     * after every chunk of {@link #MANY_CHUNK_SIZE} rows in either case.
+     */
+    public synchronized void executeMany(String sql, ArrayList<Object[]> list, ProgressListener listener) {
+        if (list.isEmpty()) {
+            return;
+        }
         mMod = true;
+        int total = list.size();
+        int done = 0;
+        while (done < total) {
+            int end = Math.min(done + MANY_CHUNK_SIZE, total);
+            // nested in the caller's transaction if there is one, so the batch stays atomic then
+            mDatabase.beginTransaction();
+            try {
+                SQLiteStatement statement = _statement(sql, null);
+                for (int i = done; i < end; i++) {
+                    _bind(statement, list.get(i));
+                    statement.execute();
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            done = end;
+            if (listener != null) {
+                listener.onProgress(done, total);
+            }
+        }
+    }
+
+
+    /**
+     * Make the ids IDS usable on the right hand side of an "id IN" clause and return the sql for it. Small sets are
+     * inlined as from Utils.ids2str(). Larger ones are loaded with a compiled insert into the temporary table NAME,
+     * which replaces its previous contents and lives until the database is closed, and the returned sql selects from
+     * it; this keeps sqlite from parsing statements of several hundred kilobytes. The result is only valid until the
+     * next call with the same NAME, so code that holds a set across a call into other code must use its own name.
+     */
+    public synchronized String idSet(String name, long[] ids) {
+        if (ids.length <= ID_SET_INLINE_SIZE) {
+            return Utils.ids2str(ids);
+        }
+        String table = "temp." + name;
+        // the table only lives in this connection, so it doesn't count as a modification
+        mDatabase.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + name + " (id INTEGER PRIMARY KEY)");
+        mDatabase.execSQL("DELETE FROM " + table);
         mDatabase.beginTransaction();
         try {
-            for (Object[] o : list) {
-                mDatabase.execSQL(sql, o);
+            SQLiteStatement statement = _statement("INSERT OR IGNORE INTO " + table + " VALUES (?)", null);
+            for (long id : ids) {
+                statement.bindLong(1, id);
+                statement.execute();
             }
             mDatabase.setTransactionSuccessful();
         } finally {
             mDatabase.endTransaction();
         }
+        return "(SELECT id FROM " + table + ")";
     }
 }
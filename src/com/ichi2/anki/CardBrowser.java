@@ -52,9 +52,9 @@ import android.widget.TextView;
 
 import com.ichi2.anim.ActivityTransitionAnimation;
 import com.ichi2.async.DeckTask;
+import com.ichi2.libanki.BrowserCards;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
-import com.ichi2.libanki.Note;
 import com.ichi2.themes.StyledDialog;
 import com.ichi2.themes.StyledProgressDialog;
 import com.ichi2.themes.Themes;
@@ -62,7 +62,6 @@ import com.ichi2.widget.WidgetStatus;
 import com.tomgibara.android.veecheck.util.PrefSettings;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -72,8 +71,7 @@ import org.amr.arabic.ArabicUtilities;
 import org.json.JSONException;
 
 public class CardBrowser extends Activity {
-    private ArrayList<HashMap<String, String>> mCards;
-    private ArrayList<HashMap<String, String>> mAllCards;
+    private BrowserCards mCards;
     private ListView mCardsListView;
     private SimpleAdapter mCardsAdapter;
     private EditText mSearchEditText;
@@ -117,15 +115,12 @@ public class CardBrowser extends Activity {
     private static final int ADD_NOTE = 1;
     private static final int DEFAULT_FONT_SIZE_RATIO = 100;
 
-    private static final int CARD_ORDER_NONE = 0;
-    private static final int CARD_ORDER_SFLD = 1;
-    private static final int CARD_ORDER_DUE = 2;
-
     private int[] mBackground;
 
     private boolean mWholeCollection;
 
-    private boolean mShowOnlyMarSus = false;
+    /** BrowserCards.SHOW_ALL, or the marked or suspended filter */
+    private int mShow = BrowserCards.SHOW_ALL;
 
     private String[] allTags;
     private HashSet<String> mSelectedTags;
@@ -228,10 +223,9 @@ public class CardBrowser extends Activity {
         mrelativeBrowserFontSize = preferences.getInt("relativeCardBrowserFontSize", DEFAULT_FONT_SIZE_RATIO);
         mPrefFixArabic = preferences.getBoolean("fixArabicText", false);
         mPrefCacheCardBrowser = preferences.getBoolean("cardBrowserCache", false);
-        mOrder = preferences.getInt("cardBrowserOrder", CARD_ORDER_NONE);
+        mOrder = preferences.getInt("cardBrowserOrder", BrowserCards.ORDER_NONE);
 
-        mCards = new ArrayList<HashMap<String, String>>();
-        mAllCards = new ArrayList<HashMap<String, String>>();
+        mCards = new BrowserCards(mCol, mWholeCollection);
         mCardsListView = (ListView) findViewById(R.id.card_browser_list);
 
         mCardsAdapter = new SizeControlledListAdapter(this, mCards, R.layout.card_item, new String[] { "sfld", "tmpl",
@@ -253,6 +247,9 @@ public class CardBrowser extends Activity {
                     return true;
                 } else if (view.getId() == R.id.card_deck && text.length() > 0) {
                     view.setVisibility(View.VISIBLE);
+                } else if (view.getId() == R.id.card_sfld && mPrefFixArabic) {
+                    ((TextView) view).setText(ArabicUtilities.reshapeSentence(text));
+                    return true;
                 }
                 return false;
             }
@@ -333,7 +330,8 @@ public class CardBrowser extends Activity {
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_BACK && event.getRepeatCount() == 0) {
             Log.i(AnkiDroidApp.TAG, "CardBrowser - onBackPressed()");
-            if (mSearchEditText.getText().length() == 0 && !mShowOnlyMarSus && mSelectedTags.size() == 0) {
+            if (mSearchEditText.getText().length() == 0 && mShow == BrowserCards.SHOW_ALL
+                    && mSelectedTags.size() == 0) {
                 // if (mPrefCacheCardBrowser) {
                 // sCachedDeckPath = mDeck.getDeckPath();
                 // sAllCardsCache = new ArrayList<HashMap<String, String>>();
@@ -342,11 +340,11 @@ public class CardBrowser extends Activity {
                 closeCardBrowser();
             } else {
                 mSearchEditText.setText("");
+                mTimerHandler.removeCallbacks(updateList);
                 mSearchEditText.setHint(R.string.downloaddeck_search);
                 mSelectedTags.clear();
-                mCards.clear();
-                mCards.addAll(mAllCards);
-                updateList();
+                mShow = BrowserCards.SHOW_ALL;
+                searchCards(0);
             }
             return true;
         }
@@ -403,29 +401,15 @@ public class CardBrowser extends Activity {
                 return true;
 
             case MENU_SHOW_MARKED:
-                mShowOnlyMarSus = true;
+                mShow = BrowserCards.SHOW_MARKED;
                 mSearchEditText.setHint(R.string.card_browser_show_marked);
-                mCards.clear();
-                for (int i = 0; i < mAllCards.size(); i++) {
-                    int flags = Integer.parseInt(mAllCards.get(i).get("flags"));
-                    if (flags == 2 || flags == 3) {
-                        mCards.add(mAllCards.get(i));
-                    }
-                }
-                updateList();
+                searchCards(0);
                 return true;
 
             case MENU_SELECT_SUSPENDED:
-                mShowOnlyMarSus = true;
+                mShow = BrowserCards.SHOW_SUSPENDED;
                 mSearchEditText.setHint(R.string.card_browser_show_suspended);
-                mCards.clear();
-                for (int i = 0; i < mAllCards.size(); i++) {
-                    int flags = Integer.parseInt(mAllCards.get(i).get("flags"));
-                    if (flags == 1 || flags == 3) {
-                        mCards.add(mAllCards.get(i));
-                    }
-                }
-                updateList();
+                searchCards(0);
                 return true;
 
             case MENU_SELECT_TAG:
@@ -477,11 +461,7 @@ public class CardBrowser extends Activity {
                                     mOrder = which;
                                     PrefSettings.getSharedPrefs(AnkiDroidApp.getInstance().getBaseContext()).edit()
                                             .putInt("cardBrowserOrder", mOrder).commit();
-                                    if (mOrder != CARD_ORDER_NONE) {
-                                        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_UPDATE_CARD_BROWSER_LIST,
-                                                mSortCardsHandler, new DeckTask.TaskData(mAllCards,
-                                                        new HashMapCompare()));
-                                    }
+                                    searchCards(R.string.card_browser_sorting_cards);
                                 }
                             }
                         });
@@ -527,30 +507,8 @@ public class CardBrowser extends Activity {
                         String tags = mSelectedTags.toString();
                         mSearchEditText.setHint(getResources().getString(R.string.card_browser_tags_shown,
                                 tags.substring(1, tags.length() - 1)));
-                        DeckTask.launchDeckTask(
-                                DeckTask.TASK_TYPE_UPDATE_CARD_BROWSER_LIST,
-                                new DeckTask.TaskListener() {
-                                    @Override
-                                    public void onPreExecute() {
-                                        mProgressDialog = StyledProgressDialog.show(CardBrowser.this, "",
-                                                getResources().getString(R.string.card_browser_filtering_cards), true);
-                                    }
-
-
-                                    @Override
-                                    public void onProgressUpdate(DeckTask.TaskData... values) {
-                                    }
-
-
-                                    @Override
-                                    public void onPostExecute(DeckTask.TaskData result) {
-                                        updateList();
-                                        if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                                            mProgressDialog.dismiss();
-                                        }
-                                    }
-                                }, new DeckTask.TaskData(mAllCards), new DeckTask.TaskData(mCards),
-                                new DeckTask.TaskData(new Object[] { mSelectedTags }));
+                        mShow = BrowserCards.SHOW_ALL;
+                        searchCards(R.string.card_browser_filtering_cards);
                     }
                 });
                 builder.setNegativeButton(res.getString(R.string.cancel), new OnClickListener() {
@@ -653,22 +611,31 @@ public class CardBrowser extends Activity {
 
 
     private void updateCardsList() {
-        String searchText = mSearchEditText.getText().toString().toLowerCase();
-        mShowOnlyMarSus = false;
-
+        mShow = BrowserCards.SHOW_ALL;
         mSearchEditText.setHint(R.string.downloaddeck_search);
-        mCards.clear();
-        if (searchText.length() == 0 && mSelectedTags.size() == 0) {
-            mCards.addAll(mAllCards);
-        } else {
-            for (int i = 0; i < mAllCards.size(); i++) {
-                HashMap<String, String> card = mAllCards.get(i);
-                if (card.get("sfld").toLowerCase().indexOf(searchText) != -1) {
-                    mCards.add(mAllCards.get(i));
-                }
-            }
+        searchCards(0);
+    }
+
+
+    /** The arguments of a card browser DeckTask: the cards and the current search, tags, filter and order. */
+    private DeckTask.TaskData searchArgs() {
+        String text = "";
+        HashSet<String> tags = new HashSet<String>();
+        if (mShow == BrowserCards.SHOW_ALL) {
+            text = mSearchEditText.getText().toString();
+            tags.addAll(mSelectedTags);
         }
-        updateList();
+        return new DeckTask.TaskData(new Object[] { mCards, text, tags, mShow, mOrder });
+    }
+
+
+    /**
+     * Search the cards again in the background with the current settings. MESSAGE is the string to show in a progress
+     * dialog meanwhile, or 0 for none.
+     */
+    private void searchCards(int message) {
+        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_UPDATE_CARD_BROWSER_LIST, new SearchCardsHandler(message),
+                searchArgs());
     }
 
 
@@ -680,9 +647,7 @@ public class CardBrowser extends Activity {
         // if (mPrefCacheCardBrowser && sAllCardsCache != null && !sAllCardsCache.isEmpty()) {
         // showDialog(DIALOG_RELOAD_CARDS);
         // } else {
-        mAllCards.clear();
-        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_LOAD_CARDS, mLoadCardsHandler, new DeckTask.TaskData(mCol, 0,
-                mWholeCollection));
+        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_LOAD_CARDS, mLoadCardsHandler, searchArgs());
         // }
     }
 
@@ -730,45 +695,14 @@ public class CardBrowser extends Activity {
         mCardsAdapter.notifyDataSetChanged();
         int count = mCards.size();
         UIUtils.setActionBarSubtitle(this,
-                getResources().getQuantityString(R.plurals.card_browser_subtitle, count, count, mAllCards.size()));
-    }
-
-
-    private int getPosition(ArrayList<HashMap<String, String>> list, long cardId) {
-        String cardid = Long.toString(cardId);
-        for (int i = 0; i < list.size(); i++) {
-            if (list.get(i).get("id").equals(cardid)) {
-                return i;
-            }
-        }
-        return -1;
+                getResources().getQuantityString(R.plurals.card_browser_subtitle, count, count, mCards.getTotal()));
     }
 
 
     private void updateCardInList(Card card) {
-        Note note = card.note();
-        for (Card c : note.cards()) {
-            int aPos = getPosition(mAllCards, c.getId());
-            int pos = getPosition(mCards, c.getId());
-
-            String sfld = note.getSFld();
-            mAllCards.get(aPos).put("sfld", sfld);
-            mCards.get(pos).put("sfld", sfld);
-
-            if (mWholeCollection) {
-                String deckName;
-                try {
-                    deckName = mCol.getDecks().get(card.getDid()).getString("name");
-                } catch (JSONException e) {
-                    throw new RuntimeException(e);
-                }
-                mAllCards.get(aPos).put("deck", deckName);
-                mCards.get(pos).put("deck", deckName);
-            }
-
-            String flags = Integer.toString((c.getQueue() == -1 ? 1 : 0) + (note.hasTag("marked") ? 2 : 0));
-            mAllCards.get(aPos).put("flags", flags);
-            mCards.get(pos).put("flags", flags);
+        // the rows of the note's cards are read again when shown
+        for (Card c : card.note().cards()) {
+            mCards.invalidate(c.getId());
         }
         updateList();
     }
@@ -777,8 +711,7 @@ public class CardBrowser extends Activity {
     private void deleteNote(Card card) {
         ArrayList<Card> cards = card.note().cards();
         for (Card c : cards) {
-            mCards.remove(getPosition(mCards, c.getId()));
-            mAllCards.remove(getPosition(mAllCards, c.getId()));
+            mCards.remove(c.getId());
         }
         updateList();
     }
@@ -822,19 +755,11 @@ public class CardBrowser extends Activity {
 
         @Override
         public void onPostExecute(DeckTask.TaskData result) {
-            // This verification would not be necessary if
-            // onConfigurationChanged it's executed correctly (which seems
-            // that emulator does not do)
-        }
-
-
-        @Override
-        public void onProgressUpdate(DeckTask.TaskData... values) {
             if (canceled) {
                 return;
             }
-            ArrayList<HashMap<String, String>> cards = values[0].getCards();
-            if (cards == null) {
+            long[] ids = (long[]) result.getObjArray()[0];
+            if (ids == null) {
                 Resources res = getResources();
                 StyledDialog.Builder builder = new StyledDialog.Builder(CardBrowser.this);
                 builder.setTitle(res.getString(R.string.error));
@@ -854,29 +779,16 @@ public class CardBrowser extends Activity {
                 });
                 builder.create().show();
             } else {
-                if (mPrefFixArabic) {
-                    for (HashMap<String, String> entry : cards) {
-                        entry.put("sfld", ArabicUtilities.reshapeSentence(entry.get("sfld")));
-                    }
-                }
-                try {
-                    mAllCards.addAll(cards);
-                    mCards.addAll(cards);
-                    if (mOrder == CARD_ORDER_NONE) {
-                        updateCardsList();
-                        mProgressDialog.dismiss();
-                    } else {
-                        DeckTask.launchDeckTask(DeckTask.TASK_TYPE_UPDATE_CARD_BROWSER_LIST, mSortCardsHandler,
-                                new DeckTask.TaskData(mAllCards, new HashMapCompare()));
-                    }
-                } catch (OutOfMemoryError e) {
-                    Log.e(AnkiDroidApp.TAG, "CardBrowser: mLoadCardsHandler: OutOfMemoryError: " + e);
-                    Themes.showThemedToast(CardBrowser.this,
-                            getResources().getString(R.string.error_insufficient_memory), false);
-                    closeCardBrowser();
-                }
+                mCards.setIds(ids, (Integer) result.getObjArray()[1]);
+                updateList();
+                mProgressDialog.dismiss();
             }
         }
+
+
+        @Override
+        public void onProgressUpdate(DeckTask.TaskData... values) {
+        }
     };
 
     private DeckTask.TaskListener mUpdateCardHandler = new DeckTask.TaskListener() {
@@ -951,15 +863,26 @@ public class CardBrowser extends Activity {
         }
     };
 
-    private DeckTask.TaskListener mSortCardsHandler = new DeckTask.TaskListener() {
+    /** Shows the result of searchCards(). */
+    private class SearchCardsHandler implements DeckTask.TaskListener {
+        private int mMessage;
+
+
+        public SearchCardsHandler(int message) {
+            mMessage = message;
+        }
+
+
         @Override
         public void onPreExecute() {
+            if (mMessage == 0) {
+                return;
+            }
             Resources res = getResources();
             if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                mProgressDialog.setMessage(res.getString(R.string.card_browser_sorting_cards));
+                mProgressDialog.setMessage(res.getString(mMessage));
             } else {
-                mProgressDialog = StyledProgressDialog.show(CardBrowser.this, "",
-                        res.getString(R.string.card_browser_sorting_cards), true);
+                mProgressDialog = StyledProgressDialog.show(CardBrowser.this, "", res.getString(mMessage), true);
             }
         }
 
@@ -971,12 +894,16 @@ public class CardBrowser extends Activity {
 
         @Override
         public void onPostExecute(DeckTask.TaskData result) {
-            updateCardsList();
-            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+            long[] ids = (long[]) result.getObjArray()[0];
+            if (ids != null) {
+                mCards.setIds(ids, -1);
+                updateList();
+            }
+            if (mMessage != 0 && mProgressDialog != null && mProgressDialog.isShowing()) {
                 mProgressDialog.dismiss();
             }
         }
-    };
+    }
 
 
     // private DeckTask.TaskListener mUndoRedoHandler = new DeckTask.TaskListener() {
@@ -1117,32 +1044,4 @@ public class CardBrowser extends Activity {
             return view;
         }
     }
-
-    private class HashMapCompare implements Comparator<HashMap<String, String>> {
-        @Override
-        public int compare(HashMap<String, String> object1, HashMap<String, String> object2) {
-            try {
-                int result = 0;
-                switch (mOrder) {
-                    case CARD_ORDER_SFLD:
-                        result = object1.get("sfld").compareToIgnoreCase(object2.get("sfld"));
-                        if (result == 0) {
-                            result = object1.get("tmpl").compareToIgnoreCase(object2.get("tmpl"));
-                        }
-                        break;
-
-                    case CARD_ORDER_DUE:
-                        result = Long.valueOf(object1.get("due")).compareTo(Long.valueOf(object2.get("due")));
-                        if (result == 0) {
-                            result = object1.get("sfld").compareToIgnoreCase(object2.get("sfld"));
-                        }
-                        break;
-                }
-                return result;
-            } catch (Exception e) {
-                Log.e(AnkiDroidApp.TAG, "Error on sorting cards: " + e);
-                return 0;
-            }
-        }
-    }
 }
@@ -2269,6 +2269,11 @@ public class DeckPicker extends FragmentActivity {
 
             @Override
             public void onProgressUpdate(TaskData... values) {
+                int[] progress = values[0].getIntList();
+                if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                    mProgressDialog.setMessage(getResources().getString(R.string.check_db_progress_message,
+                            progress[0], progress[1]));
+                }
             }
         }, new DeckTask.TaskData(mCol));
     }
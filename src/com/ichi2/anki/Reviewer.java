@@ -235,6 +235,7 @@ public class Reviewer extends AnkiActivity {
     private boolean mPrefFixHebrew; // Apply manual RTL for hebrew text - bug in Android WebView
     private boolean mPrefConvertFen;
     private boolean mPrefFixArabic;
+    private boolean mPrefWriteBehind;
     // Android WebView
     private boolean mSpeakText;
     private boolean mPlaySoundsAtStart;
@@ -266,6 +267,14 @@ public class Reviewer extends AnkiActivity {
 
     private String mCardTemplate;
 
+    /**
+     * Buffers reused by every updateCard: each filter of the card html reads mFilterIn and writes into mFilterOut,
+     * then the two are swapped. The filled card template is built in mCardHtml.
+     */
+    private StringBuilder mFilterIn = new StringBuilder();
+    private StringBuilder mFilterOut = new StringBuilder();
+    private StringBuilder mCardHtml = new StringBuilder();
+
     private String mMediaDir;
 
     private boolean mInEditor = false;
@@ -997,6 +1006,7 @@ public class Reviewer extends AnkiActivity {
 
             mBaseUrl = Utils.getBaseUrl(col.getMedia().getDir());
             restorePreferences();
+            col.getAnswerJournal().setEnabled(mPrefWriteBehind);
 
             try {
                 String[] title = mSched.getCol().getDecks().current().getString("name").split("::");
@@ -1086,6 +1096,10 @@ public class Reviewer extends AnkiActivity {
 
         Sound.stopSounds();
 
+        if (mPrefWriteBehind && mSched != null) {
+            // write the answers collected so far; the save task commits them before saving
+            UIUtils.saveCollectionInBackground(mSched.getCol());
+        }
     }
 
 
@@ -2186,6 +2200,7 @@ public class Reviewer extends AnkiActivity {
         mInputWorkaround = preferences.getBoolean("inputWorkaround", false);
         mPrefFixHebrew = preferences.getBoolean("fixHebrewText", false);
         mPrefFixArabic = preferences.getBoolean("fixArabicText", false);
+        mPrefWriteBehind = preferences.getBoolean("writeBehindAnswers", false);
         mPrefConvertFen = preferences.getBoolean("convertFenText", false);
         mSpeakText = preferences.getBoolean("tts", false);
         mPlaySoundsAtStart = preferences.getBoolean("playSoundsAtStart", true);
@@ -2513,9 +2528,13 @@ public class Reviewer extends AnkiActivity {
         // mBaseUrl = Utils.getBaseUrl();
         Boolean isJapaneseModel = false;
 
+        mFilterIn.setLength(0);
+        mFilterOut.setLength(0);
+        mFilterIn.append(content);
+
         // Check whether there is a hard coded font-size in the content and apply the relative font size
         // Check needs to be done before CSS is applied to content;
-        content = recalculateHardCodedFontSize(content, mDisplayFontSize);
+        recalculateHardCodedFontSize(mFilterIn, mDisplayFontSize);
 
         // Add CSS for font color and font size
         if (mCurrentCard != null) {
@@ -2534,7 +2553,7 @@ public class Reviewer extends AnkiActivity {
             // isJapaneseModel = myModel.hasTag(japaneseModelTag);
             // mCurrentBackgroundColor = myModel.getBackgroundColor(mCurrentCard.getCardModelId());
         } else {
-            mCard.getSettings().setDefaultFontSize(calculateDynamicFontSize(content));
+            mCard.getSettings().setDefaultFontSize(calculateDynamicFontSize(mFilterIn.toString()));
         }
 
         // Log.i(AnkiDroidApp.TAG, "Initial content card = \n" + content);
@@ -2543,9 +2562,7 @@ public class Reviewer extends AnkiActivity {
         // content);
 
         // don't play question sound again when displaying answer
-        int questionStartsAt = content.indexOf("<a name=\"question\"></a><hr/>");
         String question = "";
-        String answer = "";
 
         Sound.resetSounds();
 
@@ -2553,7 +2570,8 @@ public class Reviewer extends AnkiActivity {
         if (sDisplayAnswer) {
             qa = MetaDB.LANGUAGES_QA_ANSWER;
         }
-        answer = Sound.parseSounds(mBaseUrl, content, mSpeakText, qa);
+        Sound.parseSounds(mBaseUrl, mFilterIn, mSpeakText, qa, mFilterOut);
+        swapFilterBuffers();
 
         // Parse out the LaTeX images
         // question = LaTeX.parseLaTeX(DeckManager.getMainDeck(), question);
@@ -2562,37 +2580,42 @@ public class Reviewer extends AnkiActivity {
         // If ruby annotation support is activated, then parse and handle:
         // Strip kanji in question, add furigana in answer
         if (mPrefUseRubySupport && isJapaneseModel) {
-            content = RubyParser.ankiStripKanji(question) + RubyParser.ankiRubyToMarkup(answer);
-        } else {
-            content = question + answer;
+            mFilterOut.append(RubyParser.ankiStripKanji(question)).append(
+                    RubyParser.ankiRubyToMarkup(mFilterIn.toString()));
+            swapFilterBuffers();
         }
 
         // In order to display the bold style correctly, we have to change
         // font-weight to 700
-        content = content.replace("font-weight:600;", "font-weight:700;");
+        replace(mFilterIn, "font-weight:600;", "font-weight:700;", mFilterOut);
+        swapFilterBuffers();
 
         // Find hebrew text
         if (isHebrewFixEnabled()) {
-            content = applyFixForHebrew(content);
+            applyFixForHebrew(mFilterIn, mFilterOut);
+            swapFilterBuffers();
         }
 
         // Chess notation FEN handling
         if (this.isFenConversionEnabled()) {
-            content = fenToChessboard(content);
+            fenToChessboard(mFilterIn, mFilterOut);
+            swapFilterBuffers();
         }
 
-        Log.i(AnkiDroidApp.TAG, "content card = \n" + content);
+        Log.i(AnkiDroidApp.TAG, "content card = \n" + mFilterIn);
         StringBuilder style = new StringBuilder();
         style.append(mCustomFontStyle);
         // style.append(getDeckStyle(mCurrentCard.mDeck.getDeckPath()));
         Log.i(AnkiDroidApp.TAG, "::style::" + style);
 
         if (mNightMode) {
-            content = Models.invertColors(content);
+            Models.invertColors(mFilterIn, mFilterOut);
+            swapFilterBuffers();
         }
 
-        mCardContent = new SpannedString(mCardTemplate.replace("::content::", content).replace("::style::",
-                style.toString()));
+        mCardHtml.setLength(0);
+        fillCardTemplate(mFilterIn, style, mCardHtml);
+        mCardContent = new SpannedString(mCardHtml);
         // Log.i(AnkiDroidApp.TAG, "card html = \n" + card);
         Log.i(AnkiDroidApp.TAG, "base url = " + mBaseUrl);
 
@@ -2603,6 +2626,48 @@ public class Reviewer extends AnkiActivity {
     }
 
 
+    /** Make the output of the last card html filter the input of the next one. */
+    private void swapFilterBuffers() {
+        StringBuilder in = mFilterIn;
+        mFilterIn = mFilterOut;
+        mFilterOut = in;
+        mFilterOut.setLength(0);
+    }
+
+
+    /** Append mCardTemplate to OUT with ::content:: and ::style:: filled in, without copying the template. */
+    private void fillCardTemplate(CharSequence content, CharSequence style, StringBuilder out) {
+        int last = 0;
+        while (true) {
+            int c = mCardTemplate.indexOf("::content::", last);
+            int s = mCardTemplate.indexOf("::style::", last);
+            if (c == -1 && s == -1) {
+                break;
+            }
+            if (s == -1 || (c != -1 && c < s)) {
+                out.append(mCardTemplate, last, c).append(content);
+                last = c + "::content::".length();
+            } else {
+                out.append(mCardTemplate, last, s).append(style);
+                last = s + "::style::".length();
+            }
+        }
+        out.append(mCardTemplate, last, mCardTemplate.length());
+    }
+
+
+    /** Append TEXT to OUT with all occurrences of TARGET replaced by REPLACEMENT. */
+    private static void replace(StringBuilder text, String target, String replacement, StringBuilder out) {
+        int last = 0;
+        int pos;
+        while ((pos = text.indexOf(target, last)) != -1) {
+            out.append(text, last, pos).append(replacement);
+            last = pos + target.length();
+        }
+        out.append(text, last, text.length());
+    }
+
+
     /**
      * Plays sounds (or TTS, if configured) for current shown side of card
      */
@@ -2873,15 +2938,18 @@ public class Reviewer extends AnkiActivity {
      * this is so, then the font size must be replaced with one corrected by the relative font size. If a relative CSS
      * unit measure is used (e.g. 'em'), then only hierarchy in 'span' tag is taken into account.
      * 
-     * @param content
+     * @param sb the content, which is modified in place
      * @param percentage - the relative font size percentage defined in preferences
-     * @return
      */
-    private String recalculateHardCodedFontSize(String content, int percentage) {
-        if (null == content || 0 == content.trim().length()) {
-            return "";
+    private void recalculateHardCodedFontSize(StringBuilder sb, int percentage) {
+        int i = 0;
+        while (i < sb.length() && sb.charAt(i) <= ' ') {
+            i++;
+        }
+        if (i == sb.length()) {
+            sb.setLength(0);
+            return;
         }
-        StringBuilder sb = new StringBuilder(content);
 
         boolean fontSizeFound = true; // whether the previous loop found a valid font-size attribute
         int spanTagDepth = 0; // to find out whether a relative CSS unit measure is within another one
@@ -2967,7 +3035,6 @@ public class Reviewer extends AnkiActivity {
                 sb.replace(posFontSize + 10, posUnit, sizeS);
             }
         }
-        return sb.toString();
     }
 
 
@@ -3184,9 +3251,9 @@ public class Reviewer extends AnkiActivity {
     // return deck.mediaDir();
     // }
 
-    private String applyFixForHebrew(String text) {
+    private void applyFixForHebrew(CharSequence text, StringBuilder out) {
         Matcher m = sHebrewPattern.matcher(text);
-        StringBuffer sb = new StringBuffer();
+        int last = 0;
         while (m.find()) {
             String hebrewText = m.group();
             // Some processing before we reverse the Hebrew text
@@ -3230,35 +3297,30 @@ public class Reviewer extends AnkiActivity {
             // Log.i(AnkiDroidApp.TAG, "LTR numerals: " + sbg.codePointAt(i));
             // }
             // hebrewText = sbg.toString();//reverse().toString();
-            m.appendReplacement(sb, hebrewText);
+            out.append(text, last, m.start()).append(hebrewText);
+            last = m.end();
         }
-        m.appendTail(sb);
-        return sb.toString();
+        out.append(text, last, text.length());
     }
 
 
-    private String fenToChessboard(String text) {
+    private void fenToChessboard(CharSequence text, StringBuilder out) {
         Matcher mf = sFenPattern.matcher(text);
-        StringBuffer sb = new StringBuffer();
+        int last = 0;
         while (mf.find()) {
-            if (mf.group(1).length() == 0) {
-                mf.appendReplacement(sb, "<script type=\"text/javascript\">document.write(renderFen('" + mf.group(2)
-                        + "',false));</script>");
-            } else {
+            out.append(text, last, mf.start());
+            last = mf.end();
+            String orientation = "false";
+            if (mf.group(1).length() != 0) {
                 Matcher mo = sFenOrientationPattern.matcher(mf.group(1));
                 if (mo.find() && mo.group(1).equalsIgnoreCase("black")) {
-                    mf.appendReplacement(sb,
-                            "<script type=\"text/javascript\">document.write(renderFen('" + mf.group(2)
-                                    + "',1));</script>");
-                } else {
-                    mf.appendReplacement(sb,
-                            "<script type=\"text/javascript\">document.write(renderFen('" + mf.group(2)
-                                    + "',false));</script>");
+                    orientation = "1";
                 }
             }
+            out.append("<script type=\"text/javascript\">document.write(renderFen('").append(mf.group(2))
+                    .append("',").append(orientation).append("));</script>");
         }
-        mf.appendTail(sb);
-        return sb.toString();
+        out.append(text, last, text.length());
     }
 
 
@@ -22,11 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Set;
 import java.util.TreeSet;
 
 import org.json.JSONArray;
@@ -38,6 +34,7 @@ import com.ichi2.anki.AnkiDb;
 import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.BackupManager;
 import com.ichi2.anki2.R;
+import com.ichi2.libanki.BrowserCards;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Note;
@@ -85,6 +82,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
     public static final int TASK_TYPE_REBUILD_CRAM = 26;
     public static final int TASK_TYPE_EMPTY_CRAM = 27;
 
+    /** number of upcoming cards which are loaded and rendered while the current one is shown */
+    private static final int PREFETCH_CARDS = 3;
+
     private static DeckTask sInstance;
     private static DeckTask sOldInstance;
 
@@ -161,6 +161,11 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
                     "doInBackground - Got exception while waiting for thread to finish: " + e.getMessage());
         }
 
+        if (mType != TASK_TYPE_ANSWER_CARD) {
+            // everything else expects to find the answers of the reviewer in the database
+            commitAnswerJournal();
+        }
+
         switch (mType) {
             case TASK_TYPE_OPEN_COLLECTION:
                 return doInBackgroundOpenCollection(params);
@@ -299,9 +304,12 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
             col.getDb().getDatabase().beginTransaction();
             try {
                 // TODO: undo integration
+                sched.clearPrefetched();
                 editNote.flush();
                 // flush card too, in case, did has been changed
+                sched.removeFromDeckCounts(new long[] { editCard.getId() });
                 editCard.flush();
+                sched.addToDeckCounts(new long[] { editCard.getId() });
                 if (fromReviewer) {
                     Card newCard;
                     if (col.getDecks().active().contains(editCard.getDid())) {
@@ -336,6 +344,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         Card newCard = null;
         int oldCardLeech = 0;
         // 0: normal; 1: leech; 2: leech & suspended
+        long start = System.currentTimeMillis();
         try {
             AnkiDb ankiDB = sched.getCol().getDb();
             ankiDB.getDatabase().beginTransaction();
@@ -354,10 +363,11 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
                     newCard = sched.getCard();
                 }
                 if (newCard != null) {
-                    // render cards before locking database
-                    newCard._getQA(true);
+                    // render cards before locking database; prefetched cards are rendered already
+                    newCard._getQA(false);
                 }
                 publishProgress(new TaskData(newCard, oldCardLeech));
+                sched.getCardLatency().record(System.currentTimeMillis() - start);
                 ankiDB.getDatabase().setTransactionSuccessful();
             } finally {
                 ankiDB.getDatabase().endTransaction();
@@ -367,10 +377,48 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
             AnkiDroidApp.saveExceptionReportFile(e, "doInBackgroundAnswerCard");
             return new TaskData(false);
         }
+        try {
+            sched.getCol().getAnswerJournal().commitIfDue();
+        } catch (RuntimeException e) {
+            Log.e(AnkiDroidApp.TAG, "doInBackgroundAnswerCard - RuntimeException on writing answers: " + e);
+            AnkiDroidApp.saveExceptionReportFile(e, "doInBackgroundAnswerCard");
+        }
+        prefetchCards(sched);
         return new TaskData(true);
     }
 
 
+    /** Write the answers collected by the write-behind journal of the open collection, if any. */
+    private void commitAnswerJournal() {
+        Collection col = Collection.currentCollection();
+        if (col == null) {
+            return;
+        }
+        try {
+            col.getAnswerJournal().commit();
+        } catch (RuntimeException e) {
+            // the answers stay collected and in the journal file, and are written on the next attempt or replayed
+            Log.e(AnkiDroidApp.TAG, "commitAnswerJournal - RuntimeException on writing answers: " + e);
+            AnkiDroidApp.saveExceptionReportFile(e, "commitAnswerJournal");
+        }
+    }
+
+
+    /**
+     * Have the next cards loaded and rendered after the current one has been published, so the following answer
+     * doesn't have to wait for it. The scheduler does this on its own worker thread, so this returns at once.
+     */
+    private void prefetchCards(Sched sched) {
+        try {
+            sched.prefetch(PREFETCH_CARDS);
+        } catch (RuntimeException e) {
+            // only an optimisation; the cards are loaded again when they are due
+            Log.w(AnkiDroidApp.TAG, "prefetchCards - RuntimeException on prefetching cards: " + e);
+            sched.clearPrefetched();
+        }
+    }
+
+
     private TaskData doInBackgroundOpenCollection(TaskData... params) {
         Log.i(AnkiDroidApp.TAG, "doInBackgroundOpenCollection");
         Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
@@ -464,6 +512,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         try {
             col.getDb().getDatabase().beginTransaction();
             try {
+                sched.clearPrefetched();
                 switch (type) {
                     case 0:
                         // bury note
@@ -501,6 +550,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
             AnkiDroidApp.saveExceptionReportFile(e, "doInBackgroundSuspendCard");
             return new TaskData(false);
         }
+        prefetchCards(sched);
         return new TaskData(true);
     }
 
@@ -513,6 +563,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
             ankiDB.getDatabase().beginTransaction();
             try {
                 if (card != null) {
+                    sched.clearPrefetched();
                     Note note = card.note();
                     if (note.hasTag("marked")) {
                         note.delTag("marked");
@@ -572,10 +623,8 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
     private TaskData doInBackgroundLoadCards(TaskData... params) {
         Log.i(AnkiDroidApp.TAG, "doInBackgroundLoadCards");
-        Collection col = params[0].getCollection();
-        boolean wholeCollection = params[0].getBoolean();
-        publishProgress(new TaskData(col.findCardsForCardBrowser(wholeCollection)));
-        return null;
+        Object[] args = params[0].getObjArray();
+        return queryBrowserCards(args, ((BrowserCards) args[0]).count());
     }
 
 
@@ -606,7 +655,12 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
     private TaskData doInBackgroundCheckDatabase(TaskData... params) {
         Log.i(AnkiDroidApp.TAG, "doInBackgroundCheckDatabase");
         Collection col = params[0].getCollection();
-        long result = col.fixIntegrity();
+        long result = col.fixIntegrity(new AnkiDb.ProgressListener() {
+            @Override
+            public void onProgress(int done, int total) {
+                publishProgress(new TaskData(new int[] { done, total }));
+            }
+        });
         if (result == -1) {
             return new TaskData(false);
         } else {
@@ -712,27 +766,20 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
 
     private TaskData doInBackgroundUpdateCardBrowserList(TaskData... params) {
-        Log.i(AnkiDroidApp.TAG, "doInBackgroundSortCards");
-        if (params.length == 1) {
-            Comparator comparator = params[0].getComparator();
-            ArrayList<HashMap<String, String>> card = params[0].getCards();
-            Collections.sort(card, comparator);
-        } else {
-            ArrayList<HashMap<String, String>> allCard = params[0].getCards();
-            ArrayList<HashMap<String, String>> cards = params[1].getCards();
-            cards.clear();
-            HashSet<String> tags = new HashSet<String>();
-            for (String s : (HashSet<String>) params[2].getObjArray()[0]) {
-                tags.add(s.toLowerCase());
-            }
-            for (int i = 0; i < allCard.size(); i++) {
-                HashMap<String, String> card = allCard.get(i);
-                if (Arrays.asList(card.get("tags").toLowerCase().trim().split("\\s")).containsAll(tags)) {
-                    cards.add(allCard.get(i));
-                }
-            }
-        }
-        return null;
+        Log.i(AnkiDroidApp.TAG, "doInBackgroundUpdateCardBrowserList");
+        return queryBrowserCards(params[0].getObjArray(), -1);
+    }
+
+
+    /**
+     * Run the card browser search ARGS: the BrowserCards, search text, set of tags, filter and order. The result holds
+     * the card ids, null if cancelled, and TOTAL.
+     */
+    @SuppressWarnings("unchecked")
+    private TaskData queryBrowserCards(Object[] args, int total) {
+        long[] ids = ((BrowserCards) args[0]).query((String) args[1], (Set<String>) args[2], (Integer) args[3],
+                (Integer) args[4]);
+        return new TaskData(new Object[] { ids, total });
     }
 
 
@@ -829,11 +876,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         private int mInteger;
         private String mMsg;
         private boolean mBool = false;
-        private ArrayList<HashMap<String, String>> mCards;
         private long mLong;
         private Context mContext;
         private int mType;
-        private Comparator mComparator;
         private int[] mIntList;
         private Collection mCol;
         private Sched mSched;
@@ -877,17 +922,6 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         }
 
 
-        public TaskData(ArrayList<HashMap<String, String>> cards) {
-            mCards = cards;
-        }
-
-
-        public TaskData(ArrayList<HashMap<String, String>> cards, Comparator comparator) {
-            mCards = cards;
-            mComparator = comparator;
-        }
-
-
         public TaskData(boolean bool) {
             mBool = bool;
         }
@@ -1004,16 +1038,6 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         }
 
 
-        public ArrayList<HashMap<String, String>> getCards() {
-            return mCards;
-        }
-
-
-        public Comparator getComparator() {
-            return mComparator;
-        }
-
-
         public Card getCard() {
             return mCard;
         }
@@ -0,0 +1,356 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.libanki;
+
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.ichi2.anki.AnkiDroidApp;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Optional write-behind of card answers. When enabled, the scheduling state of answered cards and their revlog
+ * entries are collected in memory instead of being written to the database one answer at a time, and are written
+ * together in one transaction every {@link #MAX_ANSWERS} answers or {@link #MAX_SECONDS} seconds, and whenever
+ * anything else is about to read or change the cards.
+ * <p>
+ * Every collected change is also appended to a small journal file next to the collection. If the app dies before the
+ * changes reach the database, they are replayed from that file when the collection is opened the next time. Replaying
+ * is idempotent, so the file may safely contain changes which were already written.
+ * <p>
+ * A commit inside a transaction opened by someone else writes the answers, so that the following queries see them,
+ * but can't know whether that transaction will be committed or rolled back. Such answers are kept, together with the
+ * journal file, until a commit outside of any transaction has written them again.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class AnswerJournal {
+
+    /** number of answers after which the collected changes are written */
+    public static final int MAX_ANSWERS = 20;
+    /** age in seconds of the oldest collected answer after which the changes are written */
+    public static final int MAX_SECONDS = 120;
+
+    private static final String CARD = "c";
+    private static final String REVLOG = "r";
+
+    private static final String UPDATE_CARD = "UPDATE cards SET mod = ?, usn = ?, type = ?, queue = ?, due = ?, "
+            + "ivl = ?, factor = ?, reps = ?, lapses = ?, left = ?, odue = ?, odid = ?, did = ? WHERE id = ? "
+            + "AND mod <= ?";
+
+    private Collection mCol;
+    private File mFile;
+    private Writer mWriter;
+    private boolean mEnabled = false;
+
+    /** latest scheduling state of each collected card, by id; see _cardValues() */
+    private LinkedHashMap<Long, long[]> mCards = new LinkedHashMap<Long, long[]>();
+    /** collected revlog rows, in the column order of the revlog table */
+    private ArrayList<long[]> mRevlog = new ArrayList<long[]>();
+    /** answers written inside a transaction of someone else, which may still be rolled back */
+    private LinkedHashMap<Long, long[]> mUnconfirmedCards = new LinkedHashMap<Long, long[]>();
+    private ArrayList<long[]> mUnconfirmedRevlog = new ArrayList<long[]>();
+    private int mAnswers = 0;
+    private double mFirstAnswer = 0;
+    private long mLastRevlogId = 0;
+    /** whether the journal file may contain lines */
+    private boolean mFileUsed;
+
+
+    public AnswerJournal(Collection col, String path) {
+        mCol = col;
+        mFile = new File(path + ".answers");
+        mFileUsed = mFile.exists();
+    }
+
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+
+    /**
+     * Switch write-behind on or off. Answers collected before switching it off are still written by the next
+     * commit().
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+
+    /** Whether answers were collected which are not yet in the database. */
+    public boolean hasPending() {
+        return !mCards.isEmpty() || !mRevlog.isEmpty();
+    }
+
+
+    /** Whether the scheduling state of card CID was collected but is not yet in the database. */
+    public boolean isPending(long cid) {
+        return mCards.containsKey(cid);
+    }
+
+
+    /**
+     * Collecting ****************************************************************************************************
+     */
+
+    /** Collect the scheduling state of CARD, in place of Card.flushSched(). */
+    public void flushSched(Card card) {
+        card.setMod(Utils.intNow());
+        card.setUsn(mCol.usn());
+        long[] values = _cardValues(card);
+        mCards.put(card.getId(), values);
+        _append(CARD, values);
+        if (mAnswers == 0) {
+            mFirstAnswer = Utils.now();
+        }
+        mAnswers++;
+    }
+
+
+    /** Collect a revlog entry, in place of inserting it. */
+    public void log(long cid, int usn, int ease, int ivl, int lastIvl, int factor, int timeTaken, int type) {
+        long id = (long) (Utils.now() * 1000);
+        if (id <= mLastRevlogId) {
+            id = mLastRevlogId + 1;
+        }
+        mLastRevlogId = id;
+        long[] values = new long[] { id, cid, usn, ease, ivl, lastIvl, factor, timeTaken, type };
+        mRevlog.add(values);
+        _append(REVLOG, values);
+    }
+
+
+    private long[] _cardValues(Card card) {
+        // in the order of the UPDATE_CARD parameters
+        return new long[] { card.getMod(), mCol.usn(), card.getType(), card.getQueue(), card.getDue(), card.getIvl(),
+                card.getFactor(), card.getReps(), card.getLapses(), card.getLeft(), card.getODue(), card.getODid(),
+                card.getDid(), card.getId(), card.getMod() };
+    }
+
+
+    /**
+     * Writing *******************************************************************************************************
+     */
+
+    /**
+     * Write the collected answers if there are enough of them or the oldest one is old enough, and confirm answers
+     * written inside another transaction once no transaction is open anymore.
+     */
+    public void commitIfDue() {
+        if (mAnswers >= MAX_ANSWERS || (mAnswers > 0 && Utils.now() - mFirstAnswer >= MAX_SECONDS)) {
+            commit();
+        } else if (!mUnconfirmedCards.isEmpty() || !mUnconfirmedRevlog.isEmpty()) {
+            if (!mCol.getDb().getDatabase().inTransaction()) {
+                commit();
+            }
+        }
+    }
+
+
+    /**
+     * Write all collected answers to the database in one transaction. Inside a transaction of someone else they are
+     * kept as unconfirmed, see the class comment. Outside of any transaction the unconfirmed answers are written
+     * again, which is a no-op for those whose transaction was committed, and only then the journal file is emptied.
+     */
+    public void commit() {
+        SQLiteDatabase db = mCol.getDb().getDatabase();
+        boolean nested = db.inTransaction();
+        if (nested) {
+            if (hasPending()) {
+                _write(mCards, mRevlog);
+                mUnconfirmedCards.putAll(mCards);
+                mUnconfirmedRevlog.addAll(mRevlog);
+                _clearPending();
+            }
+            return;
+        }
+        if (hasPending() || !mUnconfirmedCards.isEmpty() || !mUnconfirmedRevlog.isEmpty()) {
+            // later answers of a card replace unconfirmed ones
+            mUnconfirmedCards.putAll(mCards);
+            mUnconfirmedRevlog.addAll(mRevlog);
+            _write(mUnconfirmedCards, mUnconfirmedRevlog);
+            mUnconfirmedCards.clear();
+            mUnconfirmedRevlog.clear();
+            _clearPending();
+        }
+        if (mFileUsed) {
+            _truncate();
+        }
+    }
+
+
+    private void _write(LinkedHashMap<Long, long[]> cards, ArrayList<long[]> revlog) {
+        SQLiteDatabase db = mCol.getDb().getDatabase();
+        db.beginTransaction();
+        try {
+            for (long[] values : cards.values()) {
+                mCol.getDb().executeStatement(UPDATE_CARD, _box(values));
+            }
+            for (long[] values : revlog) {
+                _insertRevlog(values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+
+    private void _clearPending() {
+        mCards.clear();
+        mRevlog.clear();
+        mAnswers = 0;
+    }
+
+
+    private void _insertRevlog(long[] values) {
+        try {
+            mCol.getDb().executeStatement("INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)", _box(values));
+        } catch (SQLiteConstraintException e) {
+            if (mCol.getDb().queryLongStatement("SELECT cid FROM revlog WHERE id = ?", new Object[] { values[0] })
+                    == values[1]) {
+                // written before, by a commit inside a transaction which was committed
+                return;
+            }
+            // same id as an entry from elsewhere; like Sched.log(), move to the next free millisecond
+            values[0]++;
+            _insertRevlog(values);
+        }
+    }
+
+
+    private Object[] _box(long[] values) {
+        Object[] o = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            o[i] = values[i];
+        }
+        return o;
+    }
+
+
+    /**
+     * Journal file **************************************************************************************************
+     */
+
+    private void _append(String type, long[] values) {
+        JSONArray line = new JSONArray();
+        line.put(type);
+        for (long v : values) {
+            line.put(v);
+        }
+        try {
+            if (mWriter == null) {
+                mWriter = new OutputStreamWriter(new FileOutputStream(mFile, true), "UTF-8");
+            }
+            mWriter.write(line.toString());
+            mWriter.write('\n');
+            // hand it to the OS, so it survives the app being killed; no fsync, that is what we want to save
+            mWriter.flush();
+            mFileUsed = true;
+        } catch (IOException e) {
+            // without the journal file a crash could lose answers, so write them right away instead
+            Log.e(AnkiDroidApp.TAG, "AnswerJournal - IOException on writing journal: " + e);
+            commit();
+        }
+    }
+
+
+    private void _truncate() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.w(AnkiDroidApp.TAG, "AnswerJournal - IOException on closing journal: " + e);
+            }
+            mWriter = null;
+        }
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(AnkiDroidApp.TAG, "AnswerJournal - could not delete " + mFile);
+            return;
+        }
+        mFileUsed = false;
+    }
+
+
+    /**
+     * Write the answers of a journal file left behind by an earlier session to the database. Cards which were
+     * changed after the journaled answer are left alone and revlog entries which already exist are skipped. A
+     * truncated last line is ignored.
+     */
+    public void replay() {
+        if (!mFile.exists()) {
+            return;
+        }
+        int lines = 0;
+        BufferedReader reader = null;
+        SQLiteDatabase db = mCol.getDb().getDatabase();
+        db.beginTransaction();
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            String s;
+            while ((s = reader.readLine()) != null) {
+                long[] values;
+                String type;
+                try {
+                    JSONArray line = new JSONArray(s);
+                    type = line.getString(0);
+                    values = new long[line.length() - 1];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = line.getLong(i + 1);
+                    }
+                } catch (JSONException e) {
+                    Log.w(AnkiDroidApp.TAG, "AnswerJournal - skipping unreadable line: " + s);
+                    continue;
+                }
+                if (CARD.equals(type)) {
+                    mCol.getDb().execute(UPDATE_CARD, _box(values));
+                } else if (REVLOG.equals(type)) {
+                    mCol.getDb().execute("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)", _box(values));
+                }
+                lines++;
+            }
+            db.setTransactionSuccessful();
+        } catch (IOException e) {
+            // keep the file for the next attempt
+            Log.e(AnkiDroidApp.TAG, "AnswerJournal - IOException on replaying journal: " + e);
+            return;
+        } finally {
+            db.endTransaction();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(AnkiDroidApp.TAG, "AnswerJournal - IOException on closing journal: " + e);
+                }
+            }
+        }
+        Log.i(AnkiDroidApp.TAG, "AnswerJournal - replayed " + lines + " journal entries");
+        _truncate();
+    }
+}
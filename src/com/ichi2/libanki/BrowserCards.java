@@ -0,0 +1,274 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+
+import com.ichi2.async.DeckTask;
+
+import org.json.JSONException;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The cards shown by the card browser. Only the ids of the listed cards are held, in display order; filtering and
+ * sorting happen in sql, except the search text, which is matched one row at a time while the ids are read, because
+ * sqlite's LIKE only ignores the case of ascii letters. Sorting uses Android's UNICODE collation, so that e.g. "ü",
+ * Cyrillic and Greek sort with their base letters regardless of case. The rows (keys "id", "sfld", "tmpl", "deck"
+ * and "flags") are read when they are first shown, a window of cards at a time, and a few hundred of them are kept.
+ * <p>
+ * {@link #query} may run on a background thread; everything else belongs to the UI thread.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class BrowserCards extends AbstractList<HashMap<String, String>> {
+
+    public static final int ORDER_NONE = 0;
+    public static final int ORDER_SFLD = 1;
+    public static final int ORDER_DUE = 2;
+
+    public static final int SHOW_ALL = 0;
+    public static final int SHOW_MARKED = 1;
+    public static final int SHOW_SUSPENDED = 2;
+
+    /** bits of the "flags" value of a row */
+    public static final int FLAG_SUSPENDED = 1;
+    public static final int FLAG_MARKED = 2;
+
+    /** rows read per query */
+    private static final int WINDOW = 64;
+    /** rows kept in memory */
+    private static final int CACHE_SIZE = 256;
+
+    private Collection mCol;
+    private boolean mWholeCollection;
+
+    private long[] mIds = new long[0];
+    private int mTotal;
+
+    private LinkedHashMap<Long, HashMap<String, String>> mRows;
+    private HashMap<Long, HashMap<Integer, String>> mTemplates;
+
+
+    public BrowserCards(Collection col, boolean wholeCollection) {
+        mCol = col;
+        mWholeCollection = wholeCollection;
+        mRows = new LinkedHashMap<Long, HashMap<String, String>>(CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, HashMap<String, String>> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+
+
+    /** The number of cards of the deck, or of the collection, without any search. */
+    public int count() {
+        return mCol.getDb().queryScalar("SELECT count() FROM cards c WHERE 1" + _deckLim(), false);
+    }
+
+
+    /**
+     * The ids of the cards whose sort field contains TEXT, ignoring case, and which have all TAGS, limited to marked or
+     * suspended cards by SHOW, in the given ORDER. Returns null if the task was cancelled.
+     */
+    public long[] query(String text, Set<String> tags, int show, int order) {
+        StringBuilder sql = new StringBuilder("SELECT c.id, n.sfld FROM cards c, notes n WHERE c.nid = n.id");
+        sql.append(_deckLim());
+        ArrayList<String> args = new ArrayList<String>();
+        String search = text.toLowerCase();
+        for (String tag : tags) {
+            sql.append(" AND n.tags LIKE ? ESCAPE '\\'");
+            args.add("% " + _escape(tag) + " %");
+        }
+        if (show == SHOW_MARKED) {
+            sql.append(" AND n.tags LIKE '% marked %'");
+        } else if (show == SHOW_SUSPENDED) {
+            sql.append(" AND c.queue = -1");
+        }
+        if (order == ORDER_SFLD) {
+            sql.append(" ORDER BY n.sfld COLLATE UNICODE, c.ord");
+        } else if (order == ORDER_DUE) {
+            // learning cards are due today
+            sql.append(" ORDER BY (CASE WHEN c.type = 1 THEN ").append(mCol.getSched().getToday())
+                    .append(" ELSE c.due END), n.sfld COLLATE UNICODE");
+        }
+        Cursor cur = null;
+        try {
+            cur = mCol.getDb().getDatabase().rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+            long[] ids = new long[cur.getCount()];
+            int n = 0;
+            while (cur.moveToNext()) {
+                if (search.length() == 0 || cur.getString(1).toLowerCase().contains(search)) {
+                    ids[n++] = cur.getLong(0);
+                }
+                if (DeckTask.taskIsCancelled()) {
+                    return null;
+                }
+            }
+            if (n < ids.length) {
+                long[] found = new long[n];
+                System.arraycopy(ids, 0, found, 0, n);
+                ids = found;
+            }
+            return ids;
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+    }
+
+
+    /** Show the cards IDS, as returned by {@link #query}. TOTAL is the result of {@link #count}, or -1 to keep it. */
+    public void setIds(long[] ids, int total) {
+        mIds = ids;
+        if (total >= 0) {
+            mTotal = total;
+        }
+    }
+
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+
+    @Override
+    public int size() {
+        return mIds.length;
+    }
+
+
+    @Override
+    public HashMap<String, String> get(int position) {
+        long id = mIds[position];
+        HashMap<String, String> row = mRows.get(id);
+        if (row == null) {
+            _loadWindow(position);
+            row = mRows.get(id);
+            if (row == null) {
+                // deleted behind our back
+                row = _row(id, "", "", "", 0);
+                mRows.put(id, row);
+            }
+        }
+        return row;
+    }
+
+
+    /** The position of card CID, or -1. */
+    public int position(long cid) {
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] == cid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /** Forget the row of card CID, so that it is read again when shown. */
+    public void invalidate(long cid) {
+        mRows.remove(cid);
+    }
+
+
+    /** Take card CID out of the list, after it has been deleted. */
+    public void remove(long cid) {
+        mRows.remove(cid);
+        mTotal--;
+        int pos = position(cid);
+        if (pos == -1) {
+            return;
+        }
+        long[] ids = new long[mIds.length - 1];
+        System.arraycopy(mIds, 0, ids, 0, pos);
+        System.arraycopy(mIds, pos + 1, ids, pos, ids.length - pos);
+        mIds = ids;
+    }
+
+
+    /** Read the rows around POSITION which aren't in memory yet; more ahead of it than behind, for scrolling down. */
+    private void _loadWindow(int position) {
+        int start = Math.max(0, position - WINDOW / 4);
+        int end = Math.min(mIds.length, start + WINDOW);
+        long[] ids = new long[end - start];
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            if (!mRows.containsKey(mIds[i])) {
+                ids[n++] = mIds[i];
+            }
+        }
+        long[] missing = new long[n];
+        System.arraycopy(ids, 0, missing, 0, n);
+        if (mTemplates == null) {
+            mTemplates = mCol.getModels().getTemplateNames();
+        }
+        Cursor cur = null;
+        try {
+            cur = mCol.getDb().getDatabase().rawQuery(
+                    "SELECT c.id, n.sfld, n.mid, c.ord, c.did, c.queue, n.tags FROM cards c, notes n "
+                            + "WHERE c.nid = n.id AND c.id IN " + Utils.ids2str(missing), null);
+            while (cur.moveToNext()) {
+                long id = cur.getLong(0);
+                HashMap<Integer, String> names = mTemplates.get(cur.getLong(2));
+                String tmpl = names != null && names.containsKey(cur.getInt(3)) ? names.get(cur.getInt(3)) : "";
+                String deck = "";
+                if (mWholeCollection) {
+                    try {
+                        deck = mCol.getDecks().get(cur.getLong(4)).getString("name");
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                int flags = (cur.getInt(5) == -1 ? FLAG_SUSPENDED : 0)
+                        + (cur.getString(6).toLowerCase().contains(" marked ") ? FLAG_MARKED : 0);
+                mRows.put(id, _row(id, cur.getString(1), tmpl, deck, flags));
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+    }
+
+
+    private static HashMap<String, String> _row(long id, String sfld, String tmpl, String deck, int flags) {
+        HashMap<String, String> row = new HashMap<String, String>();
+        row.put("id", Long.toString(id));
+        row.put("sfld", sfld);
+        row.put("tmpl", tmpl);
+        row.put("deck", deck);
+        row.put("flags", Integer.toString(flags));
+        return row;
+    }
+
+
+    private String _deckLim() {
+        return mWholeCollection ? "" : " AND c.did IN " + mCol.getSched()._deckLimit();
+    }
+
+
+    /** Escape the LIKE wildcards in S. */
+    private static String _escape(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
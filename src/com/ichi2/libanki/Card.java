@@ -17,7 +17,6 @@
 
 package com.ichi2.libanki;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.util.Log;
 
@@ -118,7 +117,8 @@ public class Card implements Cloneable {
     public void load() {
         Cursor cursor = null;
         try {
-            cursor = mCol.getDb().getDatabase().rawQuery("SELECT * FROM cards WHERE id = " + mId, null);
+            cursor = mCol.getDb().getDatabase().rawQuery("SELECT * FROM cards WHERE id = ?",
+                    new String[] { Long.toString(mId) });
             if (!cursor.moveToFirst()) {
                 Log.w(AnkiDroidApp.TAG, "Card.java (fromDB(id)): No result from query.");
                 return;
@@ -156,27 +156,10 @@ public class Card implements Cloneable {
         mUsn = mCol.usn();
         // bug check
         assert mQueue != 2 || mODue == 0 || mCol.getDecks().isDyn(mDid);
-        StringBuilder sb = new StringBuilder();
-        sb.append("INSERT OR REPLACE INTO cards VALUES (");
-        sb.append(mId).append(", ");
-        sb.append(mNid).append(", ");
-        sb.append(mDid).append(", ");
-        sb.append(mOrd).append(", ");
-        sb.append(mMod).append(", ");
-        sb.append(mUsn).append(", ");
-        sb.append(mType).append(", ");
-        sb.append(mQueue).append(", ");
-        sb.append(mDue).append(", ");
-        sb.append(mIvl).append(", ");
-        sb.append(mFactor).append(", ");
-        sb.append(mReps).append(", ");
-        sb.append(mLapses).append(", ");
-        sb.append(mLeft).append(", ");
-        sb.append(mODue).append(", ");
-        sb.append(mODid).append(", ");
-        sb.append(mFlags).append(", ");
-        sb.append("\"").append(mData).append("\")");
-        mCol.getDb().execute(sb.toString());
+        mCol.getDb().executeStatement(
+                "INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)",
+                new Object[] { mId, mNid, mDid, mOrd, mMod, mUsn, mType, mQueue, mDue, mIvl, mFactor, mReps, mLapses,
+                        mLeft, mODue, mODid, mFlags, mData });
     }
 
 
@@ -185,21 +168,11 @@ public class Card implements Cloneable {
         mUsn = mCol.usn();
         // bug check
         assert mQueue != 2 || mODue == 0 || mCol.getDecks().isDyn(mDid);
-        ContentValues values = new ContentValues();
-        values.put("mod", mMod);
-        values.put("usn", mUsn);
-        values.put("type", mType);
-        values.put("queue", mQueue);
-        values.put("due", mDue);
-        values.put("ivl", mIvl);
-        values.put("factor", mFactor);
-        values.put("reps", mReps);
-        values.put("lapses", mLapses);
-        values.put("left", mLeft);
-        values.put("odue", mODue);
-        values.put("odid", mODid);
-        values.put("did", mDid);
-        mCol.getDb().update("cards", values, "id = " + mId, null);
+        mCol.getDb().executeStatement(
+                "UPDATE cards SET mod = ?, usn = ?, type = ?, queue = ?, due = ?, ivl = ?, factor = ?, reps = ?, "
+                        + "lapses = ?, left = ?, odue = ?, odid = ?, did = ? WHERE id = ?",
+                new Object[] { mMod, mUsn, mType, mQueue, mDue, mIvl, mFactor, mReps, mLapses, mLeft, mODue, mODid,
+                        mDid, mId });
     }
 
 
@@ -351,7 +324,7 @@ public class Card implements Cloneable {
 
 
     public boolean isEmpty() {
-        ArrayList<Integer> ords = mCol.getModels().availOrds(model(), Utils.joinFields(note().getFields()));
+        ArrayList<Integer> ords = mCol.getModels().availOrds(model(), note().getFields());
         if (ords.contains(mOrd)) {
             return true;
         }
@@ -0,0 +1,162 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.util.Random;
+
+/**
+ * A FIFO queue of card (or deck) ids with an optional due value per entry, stored in two parallel ring buffers of
+ * primitive longs. Used by the scheduler instead of LinkedList&lt;long[]&gt;, so that filling and draining the queues
+ * doesn't allocate a node and a boxed array per card.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class CardQueue {
+
+    private long[] mIds;
+    private long[] mDues;
+    private int mHead;
+    private int mSize;
+
+
+    public CardQueue() {
+        this(16);
+    }
+
+
+    public CardQueue(int capacity) {
+        mIds = new long[Math.max(capacity, 1)];
+        mDues = new long[mIds.length];
+        mHead = 0;
+        mSize = 0;
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+
+    /** Append ID to the end of the queue. */
+    public void add(long id) {
+        add(id, 0);
+    }
+
+
+    /** Append ID with DUE to the end of the queue. */
+    public void add(long id, long due) {
+        if (mSize == mIds.length) {
+            _grow();
+        }
+        int tail = (mHead + mSize) % mIds.length;
+        mIds[tail] = id;
+        mDues[tail] = due;
+        mSize++;
+    }
+
+
+    /** Id of the first entry. */
+    public long getFirst() {
+        _checkNotEmpty();
+        return mIds[mHead];
+    }
+
+
+    /** Due of the first entry. */
+    public long getFirstDue() {
+        _checkNotEmpty();
+        return mDues[mHead];
+    }
+
+
+    /** Id of the entry at position I, counted from the first entry. */
+    public long get(int i) {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("CardQueue index " + i + ", size " + mSize);
+        }
+        return mIds[(mHead + i) % mIds.length];
+    }
+
+
+    /** Remove the first entry and return its id. */
+    public long remove() {
+        _checkNotEmpty();
+        long id = mIds[mHead];
+        mHead = (mHead + 1) % mIds.length;
+        mSize--;
+        return id;
+    }
+
+
+    /** Move the first entry to the end of the queue. */
+    public void rotate() {
+        _checkNotEmpty();
+        int tail = (mHead + mSize) % mIds.length;
+        mIds[tail] = mIds[mHead];
+        mDues[tail] = mDues[mHead];
+        mHead = (mHead + 1) % mIds.length;
+    }
+
+
+    /** Shuffle the entries exactly like Collections.shuffle(list, rnd) would shuffle the same list. */
+    public void shuffle(Random rnd) {
+        for (int i = mSize; i > 1; i--) {
+            _swap(i - 1, rnd.nextInt(i));
+        }
+    }
+
+
+    private void _swap(int i, int j) {
+        int a = (mHead + i) % mIds.length;
+        int b = (mHead + j) % mIds.length;
+        long id = mIds[a];
+        long due = mDues[a];
+        mIds[a] = mIds[b];
+        mDues[a] = mDues[b];
+        mIds[b] = id;
+        mDues[b] = due;
+    }
+
+
+    private void _grow() {
+        long[] ids = new long[mIds.length * 2];
+        long[] dues = new long[ids.length];
+        for (int i = 0; i < mSize; i++) {
+            ids[i] = mIds[(mHead + i) % mIds.length];
+            dues[i] = mDues[(mHead + i) % mIds.length];
+        }
+        mIds = ids;
+        mDues = dues;
+        mHead = 0;
+    }
+
+
+    private void _checkNotEmpty() {
+        if (mSize == 0) {
+            throw new IllegalStateException("CardQueue is empty");
+        }
+    }
+}
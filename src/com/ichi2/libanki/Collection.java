@@ -26,8 +26,8 @@ import com.ichi2.anki.AnkiDatabaseManager;
 import com.ichi2.anki.AnkiDb;
 import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.UIUtils;
-import com.ichi2.async.DeckTask;
-import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+import com.tomgibara.android.veecheck.util.PrefSettings;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -41,8 +41,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 // Anki maintains a cache of used tags so it can quickly present a list of tags
 // for autocomplete and in the browser. For efficiency, deletions are not
@@ -58,6 +56,10 @@ public class Collection {
     public static final int SYNC_VER = 5;
     public static final String HELP_SITE = "http://ankisrs.net/docs/dev/manual.html";
 
+    /** [cid, nid, mid, did, ord, tags, flds] of the cards to render, see _qaRow() */
+    private static final String QA_QUERY = "SELECT c.id, n.id, n.mid, c.did, c.ord, "
+            + "n.tags, n.flds FROM cards c, notes n WHERE c.nid == n.id ";
+
     private AnkiDb mDb;
     private boolean mServer;
     private double mLastSave;
@@ -67,6 +69,13 @@ public class Collection {
     private Tags mTags;
 
     private Sched mSched;
+    private AnswerJournal mAnswerJournal;
+    private FieldCache mFieldCache = new FieldCache();
+    private QACache mQACache = new QACache();
+    /** The buffer both sides of a card are rendered into, reused for every card; lock it while rendering */
+    private StringBuilder mRenderBuffer = new StringBuilder();
+    private QueryPlanCache mQueryPlans = new QueryPlanCache(this);
+    private TextIndex mTextIndex;
 
     private double mStartTime;
     private int mStartReps;
@@ -89,9 +98,6 @@ public class Collection {
     private String mPath;
     private boolean mClosing = false;
 
-    // Cloze regex
-    private static final Pattern sRegexPattern = Pattern.compile("\\{\\{cloze:");
-
     // other options
     public static final String defaultConf = "{"
             +
@@ -107,7 +113,9 @@ public class Collection {
 
 
     public static synchronized Collection openCollection(String path) {
-        sCurrentCollection = Storage.Collection(path);
+        boolean textIndex = PrefSettings.getSharedPrefs(AnkiDroidApp.getInstance().getBaseContext()).getBoolean(
+                "textIndex", false);
+        sCurrentCollection = Storage.Collection(path, false, textIndex);
         return sCurrentCollection;
     }
 
@@ -118,6 +126,12 @@ public class Collection {
 
 
     public Collection(AnkiDb db, String path, boolean server) {
+        this(db, path, server, false);
+    }
+
+
+    /** TEXTINDEX is whether to keep a full-text index of the notes; a server never does. */
+    public Collection(AnkiDb db, String path, boolean server, boolean textIndex) {
         mDb = db;
         mServer = server;
         mLastSave = Utils.now();
@@ -128,6 +142,12 @@ public class Collection {
         mDecks = new Decks(this);
         mTags = new Tags(this);
         load();
+        mAnswerJournal = new AnswerJournal(this, path);
+        mTextIndex = new TextIndex(this, path, textIndex && !server);
+        if (!server) {
+            // answers of a session which ended before they were written
+            mAnswerJournal.replay();
+        }
         if (mCrt == 0) {
             mCrt = UIUtils.getDayStart() / 1000;
         }
@@ -243,6 +263,7 @@ public class Collection {
 
 
     public synchronized void save(String name, long mod) {
+        mAnswerJournal.commit();
         // let the managers conditionally flush
         mModels.flush();
         mDecks.flush();
@@ -300,6 +321,8 @@ public class Collection {
                 } finally {
                     getDb().getDatabase().endTransaction();
                 }
+                // the answers are committed now, so their journal can go
+                mAnswerJournal.commitIfDue();
             } else {
                 rollback();
             }
@@ -437,6 +460,7 @@ public class Collection {
      * Rebuild the queue and reload data after DB modified.
      */
     public void reset() {
+        mSched.invalidateDeckCounts();
         mSched.reset();
     }
 
@@ -492,17 +516,19 @@ public class Collection {
         int due = nextID("pos");
         // add cards
         int ncards = 0;
+        long[] cids = new long[cms.size()];
         for (JSONObject template : cms) {
-            _newCard(note, template, due);
+            cids[ncards] = _newCard(note, template, due).getId();
             ncards += 1;
         }
+        mSched.addToDeckCounts(cids);
         return ncards;
     }
 
 
     public void remNotes(long[] ids) {
         ArrayList<Long> list = mDb
-                .queryColumn(Long.class, "SELECT id FROM cards WHERE nid IN " + Utils.ids2str(ids), 0);
+                .queryColumn(Long.class, "SELECT id FROM cards WHERE nid IN " + mDb.idSet("rem_nids", ids), 0);
         long[] cids = new long[list.size()];
         int i = 0;
         for (long l : list) {
@@ -519,11 +545,12 @@ public class Collection {
         if (ids.length == 0) {
             return;
         }
-        String strids = Utils.ids2str(ids);
+        String strids = mDb.idSet("rem_nids", ids);
         // we need to log these independently of cards, as one side may have
         // more card templates
         _logRem(ids, Sched.REM_NOTE);
         mDb.execute("DELETE FROM notes WHERE id IN " + strids);
+        mTextIndex.remove(strids);
     }
 
 
@@ -536,7 +563,7 @@ public class Collection {
      */
     private ArrayList<JSONObject> findTemplates(Note note) {
         JSONObject model = note.model();
-        ArrayList<Integer> avail = mModels.availOrds(model, Utils.joinFields(note.getFields()));
+        ArrayList<Integer> avail = mModels.availOrds(model, note.getFields());
         return _tmplsFromOrds(model, avail);
     }
 
@@ -573,7 +600,7 @@ public class Collection {
      */
     public ArrayList<Long> genCards(long[] nids) {
         // build map of (nid,ord) so we don't create dupes
-        String snids = Utils.ids2str(nids);
+        String snids = mDb.idSet("gen_nids", nids);
         HashMap<Long, HashMap<Integer, Long>> have = new HashMap<Long, HashMap<Integer, Long>>();
         HashMap<Long, Long> dids = new HashMap<Long, Long>();
         Cursor cur = null;
@@ -605,6 +632,7 @@ public class Collection {
         }
         // build cards for each note
         ArrayList<Object[]> data = new ArrayList<Object[]>();
+        ArrayList<Long> cids = new ArrayList<Long>();
         long ts = Utils.maxID(mDb);
         long now = Utils.intNow();
         ArrayList<Long> rem = new ArrayList<Long>();
@@ -614,8 +642,8 @@ public class Collection {
             cur = mDb.getDatabase().rawQuery("SELECT id, mid, flds FROM notes WHERE id IN " + snids, null);
             while (cur.moveToNext()) {
                 JSONObject model = mModels.get(cur.getLong(1));
-                ArrayList<Integer> avail = mModels.availOrds(model, cur.getString(2));
                 long nid = cur.getLong(0);
+                ArrayList<Integer> avail = mModels.availOrds(model, splitFields(nid, cur.getString(2)));
                 long did = dids.get(nid);
                 if (did == 0) {
                     did = model.getLong("did");
@@ -643,6 +671,7 @@ public class Collection {
                         // we'd like to use the same due# as sibling cards, but we can't retrieve that quickly, so we
                         // give it a new id instead
                         data.add(new Object[] { ts, nid, did, tord, now, usn, nextID("pos") });
+                        cids.add(ts);
                         ts += 1;
                     }
                 }
@@ -664,6 +693,7 @@ public class Collection {
         }
         // bulk update
         mDb.executeMany("INSERT INTO cards VALUES (?,?,?,?,?,?,0,0,?,0,0,0,0,0,0,0,0,\"\")", data);
+        mSched.addToDeckCounts(Utils.arrayList2array(cids));
         return rem;
     }
 
@@ -747,16 +777,17 @@ public class Collection {
         if (ids.length == 0) {
             return;
         }
-        String sids = Utils.ids2str(ids);
+        String sids = mDb.idSet("rem_cids", ids);
         long[] nids = Utils
                 .arrayList2array(mDb.queryColumn(Long.class, "SELECT nid FROM cards WHERE id IN " + sids, 0));
         // remove cards
+        mSched.removeFromDeckCounts(ids);
         _logRem(ids, Sched.REM_CARD);
         mDb.execute("DELETE FROM cards WHERE id IN " + sids);
         mDb.execute("DELETE FROM revlog WHERE cid IN " + sids);
         // then notes
         nids = Utils
-                .arrayList2array(mDb.queryColumn(Long.class, "SELECT id FROM notes WHERE id IN " + Utils.ids2str(nids)
+                .arrayList2array(mDb.queryColumn(Long.class, "SELECT id FROM notes WHERE id IN " + mDb.idSet("rem_nids", nids)
                         + " AND id NOT IN (SELECT nid FROM cards)", 0));
         _remNotes(nids);
     }
@@ -789,15 +820,21 @@ public class Collection {
 
     /** Update field checksums and sort cache, after find&replace, etc. */
     public void updateFieldCache(long[] nids) {
-        String snids = Utils.ids2str(nids);
+        updateFieldCache(nids, null);
+    }
+
+
+    /** As updateFieldCache(long[]), telling LISTENER how many notes have been written. LIBANKI: not in libanki */
+    public void updateFieldCache(long[] nids, AnkiDb.ProgressListener listener) {
+        String snids = mDb.idSet("field_nids", nids);
         ArrayList<Object[]> r = new ArrayList<Object[]>();
         for (Object[] o : _fieldData(snids)) {
-            String[] fields = Utils.splitFields((String) o[2]);
+            String[] fields = splitFields((Long) o[0], (String) o[2]);
             JSONObject model = mModels.get((Long) o[1]);
             // apply, relying on calling code to bump usn+mod
             r.add(new Object[] { Utils.stripHTML(fields[mModels.sortIdx(model)]), Utils.fieldChecksum(fields[0]), o[0] });
         }
-        mDb.executeMany("UPDATE notes SET sfld=?, csum=? WHERE id=?", r);
+        mDb.executeMany("UPDATE notes SET sfld=?, csum=? WHERE id=?", r, listener);
     }
 
 
@@ -811,23 +848,27 @@ public class Collection {
 
 
     public ArrayList<HashMap<String, String>> renderQA(int[] ids, String type) {
-        String where;
+        String where = _renderWhere(Utils.ids2str(ids), type);
+        ArrayList<HashMap<String, String>> result = new ArrayList<HashMap<String, String>>();
+        for (Object[] row : _qaData(where)) {
+            result.add(_renderQA(row));
+        }
+        return result;
+    }
+
+
+    private String _renderWhere(String ids, String type) {
         if (type.equals("card")) {
-            where = "AND c.id IN " + Utils.ids2str(ids);
+            return "AND c.id IN " + ids;
         } else if (type.equals("fact")) {
-            where = "AND f.id IN " + Utils.ids2str(ids);
+            return "AND n.id IN " + ids;
         } else if (type.equals("model")) {
-            where = "AND m.id IN " + Utils.ids2str(ids);
+            return "AND n.mid IN " + ids;
         } else if (type.equals("all")) {
-            where = "";
+            return "";
         } else {
             throw new RuntimeException();
         }
-        ArrayList<HashMap<String, String>> result = new ArrayList<HashMap<String, String>>();
-        for (Object[] row : _qaData(where)) {
-            result.add(_renderQA(row));
-        }
-        return result;
     }
 
 
@@ -840,9 +881,32 @@ public class Collection {
 
 
     public HashMap<String, String> _renderQA(Object[] data, List<String> args) {
+        long modelMod;
+        try {
+            modelMod = mModels.get((Long) data[2]).getLong("mod");
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        String deckName = mDecks.name((Long) data[3]);
+        HashMap<String, String> d = mQACache.get(data, args, modelMod, deckName);
+        if (d == null) {
+            synchronized (mRenderBuffer) {
+                d = _renderQAUncached(data, args, mRenderBuffer);
+            }
+            mQACache.put(data, args, modelMod, deckName, d);
+        }
+        return d;
+    }
+
+
+    /**
+     * LIBANKI: not in libanki; the rendering part of _renderQA. Both sides are executed into BUF, which is emptied
+     * first and only used until this returns.
+     */
+    private HashMap<String, String> _renderQAUncached(Object[] data, List<String> args, StringBuilder buf) {
         // data is [cid, nid, mid, did, ord, tags, flds]
         // unpack fields and create dict
-        String[] flist = Utils.splitFields((String) data[6]);
+        String[] flist = splitFields((Long) data[1], (String) data[6]);
         Map<String, String> fields = new HashMap<String, String>();
         long modelId = (Long) data[2];
         JSONObject model = mModels.get(modelId);
@@ -866,21 +930,15 @@ public class Collection {
             // render q & a
             HashMap<String, String> d = new HashMap<String, String>();
             d.put("id", Long.toString((Long) data[0]));
-            String qfmt = template.getString("qfmt");
-            String afmt = template.getString("afmt");
             String html;
-            String format;
+            // compiled once per model and ord, with the cloze tags bound to the card's ord
+            Template[] cmpld = mModels.getCmpldTemplate(modelId, (Integer) data[4], args);
 
             // runFilter mungeFields for type "q"
             Models.fieldParser fparser = new Models.fieldParser(fields);
-            Matcher m = sRegexPattern.matcher(qfmt);
-            if (m.find()) {
-                format = m.replaceFirst(String.format(Locale.US, "{{cq:%d:", ((Integer) data[4]) + 1));
-                html = Mustache.compiler().compile(format).execute(fparser);
-            } else {
-                // use already compiled template
-                html = mModels.getCmpldTemplate(modelId, (Integer) data[4], args)[0].execute(fparser);
-            }
+            buf.setLength(0);
+            cmpld[0].execute(fparser, buf);
+            html = buf.toString();
             html = (String) AnkiDroidApp.getHooks().runFilter("mungeQA", html, "q", fields, model, data, this);
             d.put("q", html);
             // empty cloze?
@@ -893,14 +951,9 @@ public class Collection {
 
             // runFilter mungeFields for type "a"
             fparser = new Models.fieldParser(fields);
-            m = sRegexPattern.matcher(afmt);
-            if (m.find()) {
-                format = m.replaceFirst(String.format(Locale.US, "{{ca:%d:", ((Integer) data[4]) + 1));
-                html = Mustache.compiler().compile(format).execute(fparser);
-            } else {
-                // use already compiled template
-                html = mModels.getCmpldTemplate(modelId, (Integer) data[4], args)[1].execute(fparser);
-            }
+            buf.setLength(0);
+            cmpld[1].execute(fparser, buf);
+            html = buf.toString();
             html = (String) AnkiDroidApp.getHooks().runFilter("mungeQA", html, "a", fields, model, data, this);
             d.put("a", html);
             // empty cloze?
@@ -933,12 +986,9 @@ public class Collection {
         ArrayList<Object[]> data = new ArrayList<Object[]>();
         Cursor cur = null;
         try {
-            cur = mDb.getDatabase().rawQuery(
-                    "SELECT c.id, n.id, n.mid, c.did, c.ord, "
-                            + "n.tags, n.flds FROM cards c, notes n WHERE c.nid == n.id " + where, null);
+            cur = mDb.getDatabase().rawQuery(QA_QUERY + where, null);
             while (cur.moveToNext()) {
-                data.add(new Object[] { cur.getLong(0), cur.getLong(1), cur.getLong(2), cur.getLong(3), cur.getInt(4),
-                        cur.getString(5), cur.getString(6) });
+                data.add(_qaRow(cur));
             }
         } finally {
             if (cur != null && !cur.isClosed()) {
@@ -949,6 +999,12 @@ public class Collection {
     }
 
 
+    private static Object[] _qaRow(Cursor cur) {
+        return new Object[] { cur.getLong(0), cur.getLong(1), cur.getLong(2), cur.getLong(3), cur.getInt(4),
+                cur.getString(5), cur.getString(6) };
+    }
+
+
     /**
      * Finding cards ************************************************************ ***********************************
      */
@@ -971,62 +1027,30 @@ public class Collection {
     }
 
 
+    /** Return the card ids in an array. LIBANKI: not in libanki */
+    public long[] findCardIds(String search, String order) {
+        return new Finder(this).findCardIds(search, order);
+    }
+
+
+    /**
+     * Store the card ids in the temporary table {@link Finder#SEARCH_TABLE} and return their number. LIBANKI: not in
+     * libanki
+     */
+    public int findCardsToTable(String search, String order) {
+        return new Finder(this).findCardsToTable(search, order);
+    }
+
+
     /** Return a list of note ids */
     public List<Long> findNotes(String query) {
         return new Finder(this).findNotes(query);
     }
 
 
-    /** Return a list of card ids */
-    public ArrayList<HashMap<String, String>> findCardsForCardBrowser(boolean wholeCollection) {
-        ArrayList<HashMap<String, String>> data = new ArrayList<HashMap<String, String>>();
-        Cursor cur = null;
-        String lim = "";
-        if (!wholeCollection) {
-            lim = " AND c.did IN " + mSched._deckLimit();
-        }
-        HashMap<Long, HashMap<Integer, String>> templates = mModels.getTemplateNames();
-        HashMap<Long, String> decks = null;
-        if (wholeCollection) {
-            decks = new HashMap<Long, String>();
-            try {
-                for (JSONObject o : mDecks.all()) {
-                    decks.put(o.getLong("id"), o.getString("name"));
-                }
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        try {
-            cur = mDb.getDatabase().rawQuery(
-                    "SELECT c.id, n.sfld, n.mid, c.ord, c.did, c.queue, n.tags, c.due, c.type FROM cards c, notes n WHERE c.nid = n.id"
-                            + lim, null);
-            while (cur.moveToNext()) {
-                HashMap<String, String> map = new HashMap<String, String>();
-                map.put("id", cur.getString(0));
-                map.put("sfld", cur.getString(1));
-                map.put("tmpl", templates.get(cur.getLong(2)).get(cur.getInt(3)));
-                map.put("deck", wholeCollection ? decks.get(cur.getLong(4)) : "");
-                int queue = cur.getInt(5);
-                String tags = cur.getString(6);
-                map.put("flags", Integer.toString((queue == -1 ? 1 : 0) + (tags.matches(".*[Mm]arked.*") ? 2 : 0)));
-                map.put("tags", tags);
-                String due = cur.getString(7);
-                if (cur.getInt(8) == 1) {
-                    due = Integer.toString(mSched.getToday());
-                }
-                map.put("due", due);
-                data.add(map);
-                if (DeckTask.taskIsCancelled()) {
-                    return null;
-                }
-            }
-        } finally {
-            if (cur != null && !cur.isClosed()) {
-                cur.close();
-            }
-        }
-        return data;
+    /** Return the note ids in an array. LIBANKI: not in libanki */
+    public long[] findNoteIds(String query) {
+        return new Finder(this).findNoteIds(query);
     }
 
 
@@ -1153,6 +1177,7 @@ public class Collection {
 
 
     public long undo() {
+        mAnswerJournal.commit();
         if (((Integer) mUndo[0]) == 1) {
             return _undoReview();
         } else {
@@ -1184,9 +1209,12 @@ public class Collection {
             clearUndo();
         }
         // write old data
+        mSched.removeFromDeckCounts(new long[] { c.getId() });
         c.flush();
+        mSched.addToDeckCounts(new long[] { c.getId() });
         // and delete revlog entry
-        long last = mDb.queryLongScalar("SELECT id FROM revlog WHERE cid = " + c.getId() + " ORDER BY id DESC LIMIT 1");
+        long last = mDb.queryLongStatement("SELECT id FROM revlog WHERE cid = ? ORDER BY id DESC LIMIT 1",
+                new Object[] { c.getId() });
         mDb.execute("DELETE FROM revlog WHERE id = " + last);
         // and finally, update daily count
         // FIXME: what to do in cramming case?
@@ -1214,6 +1242,7 @@ public class Collection {
     private void _undoOp() {
         rollback();
         clearUndo();
+        mSched.invalidateDeckCounts();
     }
 
 
@@ -1223,6 +1252,12 @@ public class Collection {
 
     /** Fix possible problems and rebuild caches. */
     public long fixIntegrity() {
+        return fixIntegrity(null);
+    }
+
+
+    /** As fixIntegrity(), reporting the progress of the field cache rebuild to LISTENER. LIBANKI: not in libanki */
+    public long fixIntegrity(AnkiDb.ProgressListener listener) {
         File file = new File(mPath);
         long oldSize = file.length();
         try {
@@ -1240,7 +1275,7 @@ public class Collection {
                 mTags.registerNotes();
                 // field cache
                 for (JSONObject m : mModels.all()) {
-                    updateFieldCache(Utils.arrayList2array(mModels.nids(m)));
+                    updateFieldCache(Utils.arrayList2array(mModels.nids(m)), listener);
                 }
                 // new card position
                 mConf.put("nextPos", mDb.queryScalar("SELECT max(due) + 1 FROM cards WHERE type = 0", false));
@@ -1250,6 +1285,7 @@ public class Collection {
                     mDb.execute("UPDATE cards SET due = 0, mod = " + Utils.intNow() + ", usn = " + usn()
                             + " WHERE id IN " + Utils.ids2str(Utils.arrayList2array(ids)));
                 }
+                mSched.invalidateDeckCounts();
                 mDb.getDatabase().setTransactionSuccessful();
             } catch (JSONException e) {
                 throw new RuntimeException(e);
@@ -1367,6 +1403,45 @@ public class Collection {
     }
 
 
+    /**
+     * The split fields FLDS of note NID, from a cache shared by rendering, duplicate checks and card generation. The
+     * array must not be modified. LIBANKI: not in libanki
+     */
+    public String[] splitFields(long nid, String flds) {
+        return mFieldCache.get(nid, flds);
+    }
+
+
+    /** Drop the cached rendered q/a of all cards. LIBANKI: not in libanki */
+    public void clearQACache() {
+        mQACache.clear();
+    }
+
+
+    /** Drop the cached rendered q/a of the cards of note NID. LIBANKI: not in libanki */
+    public void removeFromQACache(long nid) {
+        mQACache.removeNote(nid);
+    }
+
+
+    /** LIBANKI: not in libanki */
+    public AnswerJournal getAnswerJournal() {
+        return mAnswerJournal;
+    }
+
+
+    /** LIBANKI: not in libanki */
+    public QueryPlanCache getQueryPlans() {
+        return mQueryPlans;
+    }
+
+
+    /** LIBANKI: not in libanki */
+    public TextIndex getTextIndex() {
+        return mTextIndex;
+    }
+
+
     public String getPath() {
         return mPath;
     }
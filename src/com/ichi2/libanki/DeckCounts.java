@@ -0,0 +1,345 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Due counts of all decks, loaded with a single grouped query over the cards table. The parent/child limits of
+ * libanki's _walkingCount are applied in memory over a deck tree which is built once from the deck names.
+ * <p>
+ * The counts are only valid for the day they were loaded on. Within that day they can be kept up to date with
+ * {@link #adjust} for single cards and {@link #add}/{@link #remove} for bulk changes, so reading them needs no SQL. The
+ * deck tree is rebuilt whenever Decks reports a change to the registry; the daily limits are read from the decks on
+ * use, as every answer changes them.
+ * <p>
+ * The counts are shared between threads, e.g. the widget reads them while the reviewer's answers adjust them, so every
+ * public method locks the instance.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class DeckCounts {
+
+    // indices into the per deck counts
+    private static final int NEW = 0;
+    private static final int REV = 1;
+    private static final int LRN = 2;
+    private static final int LRN_LEFT = 3;
+
+    private Collection mCol;
+    private Sched mSched;
+    private int mToday;
+    private long mDayCutoff;
+    private int mDecksVersion;
+
+    /** [new, due rev, lrn cards, sum(left / 1000) of lrn cards] per did */
+    private HashMap<Long, int[]> mCounts;
+    /** number of cards in the collection */
+    private int mCards;
+    /** all parents of did, top level deck first, as returned by Decks.parents() */
+    private HashMap<Long, long[]> mParents;
+    /** did followed by all of its children sorted by name, as returned by Decks.children() */
+    private HashMap<Long, long[]> mSubtrees;
+
+
+    public DeckCounts(Sched sched) {
+        mSched = sched;
+        mCol = sched.getCol();
+        mToday = sched.getToday();
+        mDayCutoff = sched.getDayCutoff();
+        _loadTree();
+        _loadCounts();
+    }
+
+
+    /** The scheduler day these counts belong to. */
+    public int getToday() {
+        return mToday;
+    }
+
+
+    /**
+     * Deck tree ****************************************************************************************************
+     */
+
+    private void _loadTree() {
+        mDecksVersion = mCol.getDecks().getVersion();
+        mParents = new HashMap<Long, long[]>();
+        mSubtrees = new HashMap<Long, long[]>();
+        // walking the names in order keeps every subtree sorted like Decks.children()
+        TreeMap<String, Long> names = new TreeMap<String, Long>();
+        try {
+            for (JSONObject g : mCol.getDecks().all()) {
+                names.put(g.getString("name"), g.getLong("id"));
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        HashMap<Long, ArrayList<Long>> subtrees = new HashMap<Long, ArrayList<Long>>();
+        for (Map.Entry<String, Long> entry : names.entrySet()) {
+            long did = entry.getValue();
+            ArrayList<Long> subtree = new ArrayList<Long>();
+            subtree.add(did);
+            subtrees.put(did, subtree);
+            String[] path = entry.getKey().split("::");
+            ArrayList<Long> parents = new ArrayList<Long>();
+            String deckpath = null;
+            for (int i = 0; i < path.length - 1; i++) {
+                if (i == 0) {
+                    deckpath = path[0];
+                } else {
+                    deckpath = deckpath + "::" + path[i];
+                }
+                Long pid = names.get(deckpath);
+                if (pid != null) {
+                    parents.add(pid);
+                    subtrees.get(pid).add(did);
+                }
+            }
+            mParents.put(did, Utils.arrayList2array(parents));
+        }
+        for (Map.Entry<Long, ArrayList<Long>> entry : subtrees.entrySet()) {
+            mSubtrees.put(entry.getKey(), Utils.arrayList2array(entry.getValue()));
+        }
+    }
+
+
+    /** Reload the tree if decks were added, renamed, removed or saved since the last load. */
+    private void _checkTree() {
+        if (mDecksVersion != mCol.getDecks().getVersion()) {
+            _loadTree();
+        }
+    }
+
+
+    /** The did followed by all of its children. */
+    public synchronized long[] subtree(long did) {
+        _checkTree();
+        long[] subtree = mSubtrees.get(did);
+        if (subtree == null) {
+            return new long[] { did };
+        }
+        return subtree;
+    }
+
+
+    private long[] _parents(long did) {
+        long[] parents = mParents.get(did);
+        if (parents == null) {
+            // unknown did, resolved by Decks to the default deck
+            ArrayList<JSONObject> list = mCol.getDecks().parents(did);
+            parents = new long[list.size()];
+            try {
+                for (int i = 0; i < parents.length; i++) {
+                    parents[i] = list.get(i).getLong("id");
+                }
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return parents;
+    }
+
+
+    /** The daily limit of deck DID for TYPE, without parent limits. */
+    private int _limit(long did, int type) {
+        return _limit(mCol.getDecks().get(did), type);
+    }
+
+
+    private int _limit(JSONObject g, int type) {
+        return type == NEW ? mSched._deckNewLimitSingle(g) : mSched._deckRevLimitSingle(g);
+    }
+
+
+    /**
+     * Card counts **************************************************************************************************
+     */
+
+    private void _loadCounts() {
+        mCounts = new HashMap<Long, int[]>();
+        mCards = 0;
+        _adjust(null, 1);
+    }
+
+
+    /**
+     * Add the grouped counts of the cards matching WHERE (or all cards if null) to the totals, multiplied by SIGN.
+     */
+    private void _adjust(String where, int sign) {
+        Cursor cur = null;
+        try {
+            cur = mCol
+                    .getDb()
+                    .getDatabase()
+                    .rawQuery(
+                            "SELECT did, queue, count(), sum(CASE WHEN queue = 2 THEN due <= " + mToday
+                                    + " WHEN queue = 1 THEN due < " + mDayCutoff + " ELSE 1 END), "
+                                    + "sum(CASE WHEN queue = 1 AND due < " + mDayCutoff
+                                    + " THEN left / 1000 ELSE 0 END) FROM cards"
+                                    + (where == null ? "" : " WHERE " + where) + " GROUP BY did, queue", null);
+            while (cur.moveToNext()) {
+                mCards += sign * cur.getInt(2);
+                int[] c = _counts(cur.getLong(0));
+                switch (cur.getInt(1)) {
+                    case 0:
+                        c[NEW] += sign * cur.getInt(3);
+                        break;
+                    case 1:
+                        c[LRN] += sign * cur.getInt(3);
+                        c[LRN_LEFT] += sign * cur.getInt(4);
+                        break;
+                    case 2:
+                        c[REV] += sign * cur.getInt(3);
+                        break;
+                }
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+    }
+
+
+    private int[] _counts(long did) {
+        int[] c = mCounts.get(did);
+        if (c == null) {
+            c = new int[4];
+            mCounts.put(did, c);
+        }
+        return c;
+    }
+
+
+    /** Add the cards matching WHERE to the counts. Call after inserting or modifying them. */
+    public synchronized void add(String where) {
+        _adjust(where, 1);
+    }
+
+
+    /** Remove the cards matching WHERE from the counts. Call before deleting or modifying them. */
+    public synchronized void remove(String where) {
+        _adjust(where, -1);
+    }
+
+
+    /**
+     * Add (SIGN = 1) or remove (SIGN = -1) a single card with the given scheduling state. Used to move a card between
+     * queues without touching the database.
+     */
+    public synchronized void adjust(long did, int queue, long due, int left, int sign) {
+        mCards += sign;
+        int[] c = _counts(did);
+        if (queue == 0) {
+            c[NEW] += sign;
+        } else if (queue == 1 && due < mDayCutoff) {
+            c[LRN] += sign;
+            c[LRN_LEFT] += sign * (left / 1000);
+        } else if (queue == 2 && due <= mToday) {
+            c[REV] += sign;
+        }
+    }
+
+
+    /** Number of cards in the collection. */
+    public synchronized int cardCount() {
+        return mCards;
+    }
+
+
+    private int _count(long did, int idx) {
+        int[] c = mCounts.get(did);
+        if (c == null) {
+            return 0;
+        }
+        return c[idx];
+    }
+
+
+    /** Number of new cards in DIDS, respecting the daily limits of the decks and their parents. */
+    public synchronized int walkingCountNew(long[] dids) {
+        return _walkingCount(dids, NEW);
+    }
+
+
+    /** Number of due review cards in DIDS, respecting the daily limits of the decks and their parents. */
+    public synchronized int walkingCountRev(long[] dids) {
+        return _walkingCount(dids, REV);
+    }
+
+
+    /** Same algorithm as libanki's _walkingCount, with the limit and count functions answered from memory. */
+    private int _walkingCount(long[] dids, int type) {
+        _checkTree();
+        int tot = 0;
+        HashMap<Long, Integer> pcounts = new HashMap<Long, Integer>();
+        // for each of the active decks
+        for (long did : dids) {
+            // get the individual deck's limit
+            int lim = _limit(did, type);
+            if (lim == 0) {
+                continue;
+            }
+            // check the parents
+            long[] parents = _parents(did);
+            for (long id : parents) {
+                // add if missing
+                if (!pcounts.containsKey(id)) {
+                    pcounts.put(id, _limit(id, type));
+                }
+                // take minimum of child and parent
+                lim = Math.min(pcounts.get(id), lim);
+            }
+            // see how many cards we actually have
+            int cnt = Math.min(_count(did, type), lim);
+            // if non-zero, decrement from parents counts
+            for (long id : parents) {
+                pcounts.put(id, pcounts.get(id) - cnt);
+            }
+            // we may also be a parent
+            pcounts.put(did, lim - cnt);
+            // and add to running total
+            tot += cnt;
+        }
+        return tot;
+    }
+
+
+    /**
+     * Sum of the remaining steps of the learning cards in DIDS, or -1 if there are more than LIMIT learning cards and
+     * the result therefore depends on which rows the limited query would return.
+     */
+    public synchronized int lrnCount(long[] dids, int limit) {
+        int cards = 0;
+        int left = 0;
+        for (long did : dids) {
+            cards += _count(did, LRN);
+            left += _count(did, LRN_LEFT);
+        }
+        if (cards > limit) {
+            return -1;
+        }
+        return left;
+    }
+}
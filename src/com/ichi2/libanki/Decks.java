@@ -92,6 +92,8 @@ public class Decks {
     private HashMap<String, Long> mDeckIds;
     private HashMap<Long, JSONObject> mDconf;
     private boolean mChanged;
+    /** bumped on every change to the registry, so that cached deck trees can be rebuilt (not in libanki) */
+    private int mVersion = 0;
 
 
     /**
@@ -128,6 +130,7 @@ public class Decks {
             throw new RuntimeException(e);
         }
         mChanged = false;
+        mVersion++;
     }
 
 
@@ -138,6 +141,16 @@ public class Decks {
 
     /** Can be called with either a deck or a deck configuration. */
     public void save(JSONObject g) {
+        saveCounters(g);
+        mVersion++;
+    }
+
+
+    /**
+     * Like save(), for changes to the daily counters of deck G only, which don't invalidate cached deck trees. Called
+     * on every answer. LIBANKI: not in libanki
+     */
+    public void saveCounters(JSONObject g) {
         if (g != null) {
             try {
                 g.put("mod", Utils.intNow());
@@ -279,6 +292,8 @@ public class Decks {
         }
         // delete the deck and add a grave
         mDecks.remove(did);
+        // cards may have been left without a deck (not in libanki)
+        mCol.getSched().invalidateDeckCounts();
         // ensure we have an active deck
         if (active().contains(did)) {
             select((long) (mDecks.keySet().iterator().next()));
@@ -570,8 +585,11 @@ public class Decks {
 
 
     public void setDeck(long[] cids, long did) {
-        mCol.getDb().execute("UPDATE cards SET did = ?, usn = ?, mod = ? WHERE id IN " + Utils.ids2str(cids),
+        mCol.getSched().removeFromDeckCounts(cids);
+        mCol.getDb().execute(
+                "UPDATE cards SET did = ?, usn = ?, mod = ? WHERE id IN " + mCol.getDb().idSet("deck_cids", cids),
                 new Object[] { did, mCol.usn(), Utils.intNow() });
+        mCol.getSched().addToDeckCounts(cids);
     }
 
 
@@ -893,4 +911,9 @@ public class Decks {
     public HashMap<Long, JSONObject> getDecks() {
         return mDecks;
     }
+
+
+    public int getVersion() {
+        return mVersion;
+    }
 }
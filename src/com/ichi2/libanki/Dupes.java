@@ -0,0 +1,332 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.util.Pair;
+
+import com.ichi2.anki.AnkiDb;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Duplicate detection on field checksums. Notes are scanned once, keeping only a 64 bit hash of each normalized
+ * field and the note id in primitive arrays; field texts are only compared again for the few notes whose hashes
+ * collide. First fields are checked against the csum column of the notes table, for any number of values in a single
+ * indexed query.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class Dupes {
+
+    /** notes read per query while scanning */
+    private static final int CHUNK_SIZE = 1000;
+
+    /** result of {@link #firstFieldStates} */
+    public static final int UNIQUE = 0;
+    public static final int EMPTY = 1;
+    public static final int DUPE = 2;
+
+
+    /**
+     * Find the notes matching SEARCH that have the same value in field FIELDNAME, after stripping html and
+     * whitespace. Returns the value and the note ids of each group with more than one note, ordered by the id of
+     * their second note.
+     */
+    public static List<Pair<String, List<Long>>> find(Collection col, String fieldName, String search) {
+        List<Pair<String, List<Long>>> dupes = new ArrayList<Pair<String, List<Long>>>();
+        // limit search to notes with applicable field name
+        search += String.format(Locale.US, " '%s:*'", fieldName);
+        long[] nids = col.findNoteIds(search);
+        if (nids.length < 2) {
+            return dupes;
+        }
+        Map<Long, Integer> ords = new HashMap<Long, Integer>();
+        AnkiDb db = col.getDb();
+        // hash every value; only the hashes and ids are kept
+        LongMultiMap hashes = new LongMultiMap(nids.length);
+        String sql = "SELECT id, mid, flds FROM notes WHERE id IN " + db.idSet("dupe_nids", nids)
+                + " AND id > ? ORDER BY id LIMIT " + CHUNK_SIZE;
+        long last = Long.MIN_VALUE;
+        int read;
+        do {
+            read = 0;
+            Cursor cur = null;
+            try {
+                cur = db.getDatabase().rawQuery(sql, new String[] { Long.toString(last) });
+                while (cur.moveToNext()) {
+                    read++;
+                    last = cur.getLong(0);
+                    String val = _value(col, ords, fieldName, last, cur.getLong(1), cur.getString(2));
+                    // empty does not count as duplicate
+                    if (val.length() != 0) {
+                        hashes.put(_hash(val), last);
+                    }
+                }
+            } finally {
+                if (cur != null) {
+                    cur.close();
+                }
+            }
+        } while (read == CHUNK_SIZE);
+        // compare the texts of the notes sharing a hash
+        long[] candidates = hashes.valuesOfKeysWithCount(2);
+        if (candidates.length == 0) {
+            return dupes;
+        }
+        Arrays.sort(candidates);
+        Map<String, List<Long>> vals = new HashMap<String, List<Long>>();
+        Cursor cur = null;
+        try {
+            cur = db.getDatabase().rawQuery(
+                    "SELECT id, mid, flds FROM notes WHERE id IN " + db.idSet("dupe_nids", candidates)
+                            + " ORDER BY id", null);
+            while (cur.moveToNext()) {
+                long nid = cur.getLong(0);
+                String val = _value(col, ords, fieldName, nid, cur.getLong(1), cur.getString(2));
+                List<Long> group = vals.get(val);
+                if (group == null) {
+                    group = new ArrayList<Long>();
+                    vals.put(val, group);
+                }
+                group.add(nid);
+                if (group.size() == 2) {
+                    dupes.add(new Pair<String, List<Long>>(val, group));
+                }
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        return dupes;
+    }
+
+
+    /**
+     * Check the first fields VALS of notes of model MID against the collection, as Note.dupeOrEmpty() does for a
+     * single note: {@link #EMPTY} if blank, {@link #DUPE} if a note of the model other than EXCLUDE (0 for none) has
+     * the same first field, and {@link #UNIQUE} otherwise. Equal values within VALS don't count, as those notes haven't
+     * been added. All values are looked up with one query on the csum index, so an import batch costs one pass.
+     */
+    public static int[] firstFieldStates(Collection col, long mid, String[] vals, long exclude) {
+        int[] states = new int[vals.length];
+        LongMultiMap csums = new LongMultiMap(vals.length);
+        for (int i = 0; i < vals.length; i++) {
+            if (vals[i].trim().length() == 0) {
+                states[i] = EMPTY;
+            } else {
+                csums.put(Utils.fieldChecksum(vals[i]), i);
+            }
+        }
+        if (csums.size() == 0) {
+            return states;
+        }
+        AnkiDb db = col.getDb();
+        Cursor cur = null;
+        try {
+            cur = db.getDatabase().rawQuery(
+                    "SELECT id, csum, flds FROM notes WHERE mid = " + mid + " AND csum IN "
+                            + db.idSet("dupe_csums", csums.keys()), null);
+            while (cur.moveToNext()) {
+                if (cur.getLong(0) == exclude) {
+                    continue;
+                }
+                long[] idxs = csums.get(cur.getLong(1));
+                if (idxs.length == 0) {
+                    continue;
+                }
+                // only the first field is needed, so don't split the rest
+                String flds = cur.getString(2);
+                int end = flds.indexOf('\u001f');
+                String first = end == -1 ? flds : flds.substring(0, end);
+                for (long i : idxs) {
+                    if (vals[(int) i].equals(first)) {
+                        states[(int) i] = DUPE;
+                    }
+                }
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        return states;
+    }
+
+
+    /** The normalized value of field FIELDNAME of a note. */
+    private static String _value(Collection col, Map<Long, Integer> ords, String fieldName, long nid, long mid,
+            String flds) {
+        Integer ord = ords.get(mid);
+        if (ord == null) {
+            JSONObject model = col.getModels().get(mid);
+            ord = col.getModels().fieldMap(model).get(fieldName).first;
+            ords.put(mid, ord);
+        }
+        return Utils.stripHTMLMedia(col.splitFields(nid, flds)[ord]).trim();
+    }
+
+
+    /** 64 bit FNV-1a hash of S; collisions are resolved by comparing the texts. */
+    private static long _hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+
+    /**
+     * A multimap of long keys to long values in primitive arrays: an open addressing table of keys, each pointing to a
+     * chain of its values in parallel arrays. Values can only be added.
+     */
+    static class LongMultiMap {
+        private long[] mKeys;
+        /** index + 1 of the last value of the key in each slot, 0 for an empty slot */
+        private int[] mHeads;
+        private int[] mCounts;
+        private int mKeyCount;
+
+        private long[] mValues;
+        /** index + 1 of the previous value of the same key, 0 for none */
+        private int[] mNext;
+        private int mSize;
+
+
+        public LongMultiMap(int expected) {
+            int cap = 16;
+            while (cap < expected * 2) {
+                cap <<= 1;
+            }
+            mKeys = new long[cap];
+            mHeads = new int[cap];
+            mCounts = new int[cap];
+            mValues = new long[Math.max(expected, 16)];
+            mNext = new int[mValues.length];
+        }
+
+
+        public void put(long key, long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+                mNext = Arrays.copyOf(mNext, mSize * 2);
+            }
+            int slot = _slot(key);
+            if (mHeads[slot] == 0) {
+                mKeys[slot] = key;
+                mKeyCount++;
+            }
+            mValues[mSize] = value;
+            mNext[mSize] = mHeads[slot];
+            mSize++;
+            mHeads[slot] = mSize;
+            mCounts[slot]++;
+            if (mKeyCount * 2 > mKeys.length) {
+                _grow();
+            }
+        }
+
+
+        /** The values of KEY, most recently added first. */
+        public long[] get(long key) {
+            int slot = _slot(key);
+            long[] res = new long[mCounts[slot]];
+            int i = 0;
+            for (int v = mHeads[slot]; v != 0; v = mNext[v - 1]) {
+                res[i++] = mValues[v - 1];
+            }
+            return res;
+        }
+
+
+        public long[] keys() {
+            long[] res = new long[mKeyCount];
+            int i = 0;
+            for (int slot = 0; slot < mKeys.length; slot++) {
+                if (mHeads[slot] != 0) {
+                    res[i++] = mKeys[slot];
+                }
+            }
+            return res;
+        }
+
+
+        /** All values of the keys with at least MIN values. */
+        public long[] valuesOfKeysWithCount(int min) {
+            int n = 0;
+            for (int slot = 0; slot < mKeys.length; slot++) {
+                if (mCounts[slot] >= min) {
+                    n += mCounts[slot];
+                }
+            }
+            long[] res = new long[n];
+            int i = 0;
+            for (int slot = 0; slot < mKeys.length; slot++) {
+                if (mCounts[slot] >= min) {
+                    for (int v = mHeads[slot]; v != 0; v = mNext[v - 1]) {
+                        res[i++] = mValues[v - 1];
+                    }
+                }
+            }
+            return res;
+        }
+
+
+        /** Number of values. */
+        public int size() {
+            return mSize;
+        }
+
+
+        /** The slot of KEY, or the empty slot where it belongs. */
+        private int _slot(long key) {
+            int mask = mKeys.length - 1;
+            int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (mHeads[slot] != 0 && mKeys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+
+        private void _grow() {
+            long[] keys = mKeys;
+            int[] heads = mHeads;
+            int[] counts = mCounts;
+            mKeys = new long[keys.length * 2];
+            mHeads = new int[keys.length * 2];
+            mCounts = new int[keys.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                if (heads[i] != 0) {
+                    int slot = _slot(keys[i]);
+                    mKeys[slot] = keys[i];
+                    mHeads[slot] = heads[i];
+                    mCounts[slot] = counts[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.libanki;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small LRU cache of split field arrays by note id, so that rendering, duplicate checks and card generation don't
+ * split the same joined field string over and over. An entry is only used if the joined string still equals the one
+ * it was split from; note mods have a resolution of one second and can't tell two quick edits apart.
+ * <p>
+ * The returned arrays are shared and must not be modified; use Utils.splitFields() for a private copy.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class FieldCache {
+
+    private static final int SIZE = 500;
+
+    private LinkedHashMap<Long, Object[]> mCache;
+
+
+    public FieldCache() {
+        mCache = new LinkedHashMap<Long, Object[]>(SIZE * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object[]> eldest) {
+                return size() > SIZE;
+            }
+        };
+    }
+
+
+    /** The fields of note NID, whose joined fields are FLDS. */
+    public synchronized String[] get(long nid, String flds) {
+        Object[] entry = mCache.get(nid);
+        if (entry != null && flds.equals(entry[0])) {
+            return (String[]) entry[1];
+        }
+        String[] fields = Utils.splitFields(flds);
+        mCache.put(nid, new Object[] { flds, fields });
+        return fields;
+    }
+
+
+    public synchronized void clear() {
+        mCache.clear();
+    }
+}
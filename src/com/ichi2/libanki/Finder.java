@@ -21,13 +21,14 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.util.Pair;
 
+import com.ichi2.anki.AnkiDb;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -50,6 +51,9 @@ public class Finder {
     private static final List<String> fValidProps = Arrays
             .asList(new String[] { "due", "ivl", "reps", "lapses", "ease" });
 
+    /** Temporary table filled by {@link #findCardsToTable}. */
+    public static final String SEARCH_TABLE = "temp.search_ids";
+
     private Collection mCol;
 
 
@@ -58,74 +62,162 @@ public class Finder {
     }
 
 
+    /**
+     * A compiled query: the WHERE clause with the resolved deck, model and template ids in it, and the values of its
+     * bind slots. Shared through the QueryPlanCache, so it must not be modified.
+     * <p>
+     * LIBANKI: not in libanki
+     */
+    public static class QueryPlan {
+        /** null if the query is invalid */
+        public final String mPreds;
+        public final String[] mArgs;
+
+
+        public QueryPlan(String preds, String[] args) {
+            mPreds = preds;
+            mArgs = args;
+        }
+    }
+
+
     /** Return a list of card ids for QUERY */
     public List<Long> findCards(String query, String _order) {
-        String[] tokens = _tokenize(query);
-        Pair<String, String[]> res1 = _where(tokens);
-        String preds = res1.first;
-        String[] args = res1.second;
-        List<Long> res = new ArrayList<Long>();
-        if (preds == null) {
-            return res;
+        return _toList(findCardIds(query, _order));
+    }
+
+
+    /**
+     * Return the card ids for QUERY in an array, which takes an eighth of the memory of the boxed list for large
+     * collections. LIBANKI: not in libanki
+     */
+    public long[] findCardIds(String query, String _order) {
+        QueryPlan plan = _plan(query);
+        if (plan.mPreds == null) {
+            return new long[0];
+        }
+        Pair<String, Boolean> res = _order(_order);
+        long[] ids = _ids(_query(plan.mPreds, res.first), plan.mArgs);
+        if (res.second) {
+            for (int i = 0, j = ids.length - 1; i < j; i++, j--) {
+                long t = ids[i];
+                ids[i] = ids[j];
+                ids[j] = t;
+            }
         }
-        Pair<String, Boolean> res2 = _order(_order);
-        String order = res2.first;
-        boolean rev = res2.second;
-        String sql = _query(preds, order);
-        Cursor cur = null;
+        return ids;
+    }
+
+
+    /**
+     * Store the ids of the cards matching QUERY in the temporary table {@link #SEARCH_TABLE}, ordered by ORDER (an sql
+     * order clause, optionally with a limit, or null). The ids stay in sqlite: the table can be joined against for
+     * bulk updates instead of passing them back in an IN list. Column pos counts the cards from 1 in search order.
+     * Returns the number of cards. LIBANKI: not in libanki
+     */
+    public int findCardsToTable(String query, String order) {
+        AnkiDb db = mCol.getDb();
+        // straight to sqlite: writing the temp table must not mark the collection modified
+        db.getDatabase().execSQL("CREATE TEMP TABLE IF NOT EXISTS " + SEARCH_TABLE
+                + " (pos INTEGER PRIMARY KEY, id INTEGER NOT NULL)");
+        db.getDatabase().execSQL("CREATE UNIQUE INDEX IF NOT EXISTS temp.ix_search_ids ON search_ids (id)");
+        db.getDatabase().execSQL("DELETE FROM " + SEARCH_TABLE);
+        QueryPlan plan = _plan(query);
+        if (plan.mPreds == null) {
+            return 0;
+        }
+        String sql = _query(plan.mPreds, order == null || order.length() == 0 ? "" : " order by " + order);
         try {
-            cur = mCol.getDb().getDatabase().rawQuery(sql, args);
-            while (cur.moveToNext()) {
-                res.add(cur.getLong(0));
-            }
+            db.getDatabase().execSQL("INSERT INTO " + SEARCH_TABLE + " (id) " + sql, plan.mArgs);
         } catch (SQLException e) {
             // invalid grouping
-            return new ArrayList<Long>();
-        } finally {
-            if (cur != null) {
-                cur.close();
-            }
-        }
-        if (rev) {
-            Collections.reverse(res);
+            return 0;
         }
-        return res;
+        return db.queryScalar("SELECT count() FROM " + SEARCH_TABLE, false);
     }
 
 
     public List<Long> findNotes(String query) {
-        String[] tokens = _tokenize(query);
-        Pair<String, String[]> res1 = _where(tokens);
-        String preds = res1.first;
-        String[] args = res1.second;
-        List<Long> res = new ArrayList<Long>();
+        return _toList(findNoteIds(query));
+    }
+
+
+    /** Return the note ids for QUERY in an array. LIBANKI: not in libanki */
+    public long[] findNoteIds(String query) {
+        Pair<String, String[]> q = _notesQuery(query);
+        if (q == null) {
+            return new long[0];
+        }
+        return _ids(q.first, q.second);
+    }
+
+
+    /**
+     * The sql selecting the ids of the notes matching QUERY, and its arguments, for use as a subquery. null if the
+     * query is invalid. LIBANKI: not in libanki
+     */
+    public Pair<String, String[]> _notesQuery(String query) {
+        QueryPlan plan = _plan(query);
+        String preds = plan.mPreds;
         if (preds == null) {
-            return res;
+            return null;
         }
         if (preds.equals("")) {
             preds = "1";
         } else {
             preds = "(" + preds + ")";
         }
-        String sql = "select distinct(n.id) from cards c, notes n where c.nid=n.id and " + preds;
+        return new Pair<String, String[]>("select distinct(n.id) from cards c, notes n where c.nid=n.id and " + preds,
+                plan.mArgs);
+    }
+
+
+    /** Read the ids selected by SQL into an array; empty if the query fails. LIBANKI: not in libanki */
+    private long[] _ids(String sql, String[] args) {
         Cursor cur = null;
         try {
             cur = mCol.getDb().getDatabase().rawQuery(sql, args);
-            while (cur.moveToNext()) {
-                res.add(cur.getLong(0));
+            long[] res = new long[cur.getCount()];
+            for (int i = 0; cur.moveToNext(); i++) {
+                res[i] = cur.getLong(0);
             }
+            return res;
         } catch (SQLException e) {
             // invalid grouping
-            return new ArrayList<Long>();
+            return new long[0];
         } finally {
             if (cur != null) {
                 cur.close();
             }
         }
+    }
+
+
+    private static List<Long> _toList(long[] ids) {
+        List<Long> res = new ArrayList<Long>(ids.length);
+        for (long id : ids) {
+            res.add(id);
+        }
         return res;
     }
 
 
+    /** The cached plan of QUERY, or a new one. LIBANKI: not in libanki */
+    private QueryPlan _plan(String query) {
+        QueryPlanCache cache = mCol.getQueryPlans();
+        QueryPlan plan = cache.get(query);
+        if (plan == null) {
+            SearchState s = new SearchState();
+            Pair<String, String[]> res = _where(_tokenize(query), s);
+            plan = new QueryPlan(res.first, res.second);
+            if (s.cacheable) {
+                cache.put(query, plan);
+            }
+        }
+        return plan;
+    }
+
+
     // Tokenizing
     // ///////////
     public String[] _tokenize(String query) {
@@ -199,6 +291,8 @@ public class Finder {
         public boolean join;
         public String q;
         public boolean bad;
+        /** false if the result depends on note contents, so that it can't be cached (not in libanki) */
+        public boolean cacheable;
 
 
         public SearchState() {
@@ -207,13 +301,18 @@ public class Finder {
             join = false;
             q = "";
             bad = false;
+            cacheable = true;
         }
     }
 
 
     public Pair<String, String[]> _where(String[] tokens) {
+        return _where(tokens, new SearchState());
+    }
+
+
+    private Pair<String, String[]> _where(String[] tokens, SearchState s) {
         // state and query
-        SearchState s = new SearchState();
         List<String> args = new ArrayList<String>();
         for (String token : tokens) {
             if (s.bad) {
@@ -236,24 +335,8 @@ public class Finder {
                 String val = spl[1];
                 if (cmd.equals("tag")) {
                     addPred(s, _findTag(val, args));
-                } else if (cmd.equals("is")) {
-                    addPred(s, _findCardState(val));
-                } else if (cmd.equals("nid")) {
-                    addPred(s, _findNids(val));
-                } else if (cmd.equals("card")) {
-                    addPred(s, _findTemplate(val));
-                } else if (cmd.equals("note")) {
-                    addPred(s, _findModel(val));
-                } else if (cmd.equals("deck")) {
-                    addPred(s, _findDeck(val));
-                } else if (cmd.equals("prop")) {
-                    addPred(s, _findProp(val));
-                } else if (cmd.equals("rated")) {
-                    addPred(s, _findRated(val));
-                } else if (cmd.equals("added")) {
-                    addPred(s, _findAdded(val));
                 } else {
-                    addPred(s, _findField(cmd, val));
+                    addPred(s, _findCommand(s, token, cmd, val));
                 }
                 // normal text search
             } else {
@@ -267,6 +350,43 @@ public class Finder {
     }
 
 
+    /**
+     * The predicate of a command other than tag:, which adds no bind values. The predicates of all commands but field
+     * searches only depend on the decks, models and day, so they are remembered by token for the next searches.
+     * LIBANKI: not in libanki
+     */
+    private String _findCommand(SearchState s, String token, String cmd, String val) {
+        QueryPlanCache cache = mCol.getQueryPlans();
+        if (cache.hasPred(token)) {
+            return cache.getPred(token);
+        }
+        String pred;
+        if (cmd.equals("is")) {
+            pred = _findCardState(val);
+        } else if (cmd.equals("nid")) {
+            pred = _findNids(val);
+        } else if (cmd.equals("card")) {
+            pred = _findTemplate(val);
+        } else if (cmd.equals("note")) {
+            pred = _findModel(val);
+        } else if (cmd.equals("deck")) {
+            pred = _findDeck(val);
+        } else if (cmd.equals("prop")) {
+            pred = _findProp(val);
+        } else if (cmd.equals("rated")) {
+            pred = _findRated(val);
+        } else if (cmd.equals("added")) {
+            pred = _findAdded(val);
+        } else {
+            // depends on the notes
+            s.cacheable = false;
+            return _findField(cmd, val);
+        }
+        cache.putPred(token, pred);
+        return pred;
+    }
+
+
     private void addPred(SearchState s, String txt) {
         addPred(s, txt, true);
     }
@@ -497,10 +617,13 @@ public class Finder {
 
 
     private String _findText(String val, List<String> args) {
+        // LIBANKI: not in libanki; the text index, if enabled, narrows plain words down to a few candidate notes
+        String index = mCol.getTextIndex().findText(val, args);
         val = val.replace("*", "%");
         args.add("%" + val + "%");
         args.add("%" + val + "%");
-        return "(n.sfld like ? escape '\\' or n.flds like ? escape '\\')";
+        String like = "(n.sfld like ? escape '\\' or n.flds like ? escape '\\')";
+        return index == null ? like : "(" + index + " and " + like + ")";
     }
 
 
@@ -657,7 +780,7 @@ public class Finder {
                                     Utils.ids2str(new LinkedList<Long>(mods.keySet()))),
                             new String[] { "%" + val + "%" });
             while (cur.moveToNext()) {
-                String[] flds = Utils.splitFields(cur.getString(2));
+                String[] flds = mCol.splitFields(cur.getLong(0), cur.getString(2));
                 int ord = (Integer) mods.get(cur.getLong(1))[1];
                 String strg = flds[ord];
                 if (Pattern.compile(regex, Pattern.CASE_INSENSITIVE).matcher(strg).matches()) {
@@ -736,7 +859,8 @@ public class Finder {
         Pattern regex = Pattern.compile(src);
 
         ArrayList<Object[]> d = new ArrayList<Object[]>();
-        String sql = "select id, mid, flds from notes where id in " + Utils.ids2str(nids.toArray(new Long[] {}));
+        String sql = "select id, mid, flds from notes where id in "
+                + col.getDb().idSet("replace_nids", Utils.toPrimitive(nids));
         nids = new ArrayList<Long>();
 
         Cursor cur = null;
@@ -777,6 +901,7 @@ public class Finder {
         }
         // replace
         col.getDb().executeMany("update notes set flds=?,mod=?,usn=? where id=?", d);
+        col.getTextIndex().update(d);
         long[] pnids = Utils.toPrimitive(nids);
         col.updateFieldCache(pnids);
         col.genCards(pnids);
@@ -817,45 +942,6 @@ public class Finder {
 
 
     public static List<Pair<String, List<Long>>> findDupes(Collection col, String fieldName, String search) {
-        // limit search to notes with applicable field name
-        search += String.format(Locale.US, " '%s:*'", fieldName);
-        // go through notes
-
-        String sql = "select id, mid, flds from notes where id in "
-                + Utils.ids2str(col.findNotes(search).toArray(new Long[] {}));
-        Cursor cur = null;
-        Map<Long, Integer> fields = new HashMap<Long, Integer>();
-        Map<String, List<Long>> vals = new HashMap<String, List<Long>>();
-        List<Pair<String, List<Long>>> dupes = new ArrayList<Pair<String, List<Long>>>();
-        try {
-            cur = col.getDb().getDatabase().rawQuery(sql, null);
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(0);
-                long mid = cur.getLong(1);
-                String[] flds = Utils.splitFields(cur.getString(2));
-                // inlined ordForMid(mid)
-                if (!fields.containsKey(mid)) {
-                    JSONObject model = col.getModels().get(mid);
-                    fields.put(mid, col.getModels().fieldMap(model).get(fieldName).first);
-                }
-                String val = flds[fields.get(mid)];
-                // empty does not count as duplicate
-                if (val.equals("")) {
-                    continue;
-                }
-                if (!vals.containsKey(val)) {
-                    vals.put(val, new ArrayList<Long>());
-                }
-                vals.get(val).add(nid);
-                if (vals.get(val).size() == 2) {
-                    dupes.add(new Pair<String, List<Long>>(val, vals.get(val)));
-                }
-            }
-        } finally {
-            if (cur != null) {
-                cur.close();
-            }
-        }
-        return dupes;
+        return Dupes.find(col, fieldName, search);
     }
 }
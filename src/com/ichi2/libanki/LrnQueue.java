@@ -0,0 +1,180 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+/**
+ * The sub-day learning queue: card ids ordered by due time, kept in a binary min-heap over parallel primitive arrays.
+ * Cards with the same due time come out in the order they were added, which matches sorting the queue once and then
+ * inserting every card after all cards due at the same time.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class LrnQueue {
+
+    private long[] mDues;
+    private long[] mIds;
+    /** insertion order, used to break ties between equal dues */
+    private long[] mSeqs;
+    private int mSize;
+    private long mNextSeq;
+
+
+    public LrnQueue() {
+        this(16);
+    }
+
+
+    public LrnQueue(int capacity) {
+        mDues = new long[Math.max(capacity, 1)];
+        mIds = new long[mDues.length];
+        mSeqs = new long[mDues.length];
+        clear();
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public void clear() {
+        mSize = 0;
+        mNextSeq = 0;
+    }
+
+
+    /** Insert card ID due at DUE. O(log n). */
+    public void add(long due, long id) {
+        if (mSize == mDues.length) {
+            _grow();
+        }
+        mDues[mSize] = due;
+        mIds[mSize] = id;
+        mSeqs[mSize] = mNextSeq++;
+        _siftUp(mSize);
+        mSize++;
+    }
+
+
+    /** Due time of the first card. */
+    public long getFirstDue() {
+        _checkNotEmpty();
+        return mDues[0];
+    }
+
+
+    /** Id of the first card. */
+    public long getFirst() {
+        _checkNotEmpty();
+        return mIds[0];
+    }
+
+
+    /** Remove the first card and return its id. O(log n). */
+    public long remove() {
+        _checkNotEmpty();
+        long id = mIds[0];
+        mSize--;
+        if (mSize > 0) {
+            _move(mSize, 0);
+            _siftDown(0);
+        }
+        return id;
+    }
+
+
+    private boolean _less(int i, int j) {
+        if (mDues[i] != mDues[j]) {
+            return mDues[i] < mDues[j];
+        }
+        return mSeqs[i] < mSeqs[j];
+    }
+
+
+    private void _siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!_less(i, parent)) {
+                break;
+            }
+            _swap(i, parent);
+            i = parent;
+        }
+    }
+
+
+    private void _siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= mSize) {
+                break;
+            }
+            int smallest = left;
+            int right = left + 1;
+            if (right < mSize && _less(right, left)) {
+                smallest = right;
+            }
+            if (!_less(smallest, i)) {
+                break;
+            }
+            _swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+
+    private void _move(int from, int to) {
+        mDues[to] = mDues[from];
+        mIds[to] = mIds[from];
+        mSeqs[to] = mSeqs[from];
+    }
+
+
+    private void _swap(int i, int j) {
+        long due = mDues[i];
+        long id = mIds[i];
+        long seq = mSeqs[i];
+        _move(j, i);
+        mDues[j] = due;
+        mIds[j] = id;
+        mSeqs[j] = seq;
+    }
+
+
+    private void _grow() {
+        int capacity = mDues.length * 2;
+        long[] dues = new long[capacity];
+        long[] ids = new long[capacity];
+        long[] seqs = new long[capacity];
+        System.arraycopy(mDues, 0, dues, 0, mSize);
+        System.arraycopy(mIds, 0, ids, 0, mSize);
+        System.arraycopy(mSeqs, 0, seqs, 0, mSize);
+        mDues = dues;
+        mIds = ids;
+        mSeqs = seqs;
+    }
+
+
+    private void _checkNotEmpty() {
+        if (mSize == 0) {
+            throw new IllegalStateException("LrnQueue is empty");
+        }
+    }
+}
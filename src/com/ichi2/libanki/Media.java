@@ -30,8 +30,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -40,6 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -49,6 +50,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -62,6 +65,10 @@ public class Media {
     public static final int MEDIA_REM = 1;
     public static final long SYNC_ZIP_SIZE = 2560 * 1024;
 
+    /** extensions of formats which are compressed already, so they are stored in the sync zip as they are */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(new String[] { "jpg",
+            "jpeg", "png", "gif", "webp", "mp3", "ogg", "oga", "m4a", "aac", "mp4", "webm", "zip" }));
+
     private static final Pattern fMediaRegexps[] = { Pattern.compile("(?i)(\\[sound:([^]]+)\\])"),
             Pattern.compile("(?i)(<img[^>]+src=[\"']?([^\"'>]+)[\"']?[^>]*>)") };
     private static final Pattern fRemoteFilePattern = Pattern.compile("(https?|ftp)://");
@@ -438,7 +445,7 @@ public class Media {
                 }
                 String csum = Utils.fileChecksum(path);
                 // append db
-                media.add(new Object[] { name, csum, _mtime(name) });
+                media.add(new Object[] { name, csum, _mtime(path) });
                 mMediaDb.execute("delete from log where fname = ?", new String[] { name });
             }
         }
@@ -491,24 +498,43 @@ public class Media {
         List<String> fnames = new ArrayList<String>();
 
         try {
-            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+                    Utils.CHUNK_SIZE));
 
             JSONObject files = new JSONObject();
             int cnt = 0;
             long sz = 0;
-            byte buffer[] = new byte[2048];
+            byte buffer[] = new byte[Utils.CHUNK_SIZE];
             boolean finished = true;
             for (String fname : filenames) {
                 fnames.add(fname);
                 File file = new File(getDir(), fname);
-                BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file), 2048);
-                ZipEntry entry = new ZipEntry(Integer.toString(cnt));
-                zos.putNextEntry(entry);
-                int count = 0;
-                while ((count = bis.read(buffer, 0, 2048)) != -1) {
-                    zos.write(buffer, 0, count);
+                if (_isCompressed(fname) && file.length() <= SYNC_ZIP_SIZE) {
+                    // a STORED entry needs its size and crc up front; take both from the one read of the file
+                    byte[] data = _readFile(file, buffer);
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    ZipEntry entry = new ZipEntry(Integer.toString(cnt));
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc.getValue());
+                    zos.putNextEntry(entry);
+                    zos.write(data);
+                } else {
+                    // too big to hold in memory: deflate level 0 copies compressed formats as well
+                    zos.setLevel(_isCompressed(fname) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                    zos.putNextEntry(new ZipEntry(Integer.toString(cnt)));
+                    InputStream is = new FileInputStream(file);
+                    try {
+                        int count;
+                        while ((count = is.read(buffer)) != -1) {
+                            zos.write(buffer, 0, count);
+                        }
+                    } finally {
+                        is.close();
+                    }
                 }
-                bis.close();
                 files.put(Integer.toString(cnt), fname);
                 sz += file.length();
                 if (sz > SYNC_ZIP_SIZE) {
@@ -535,6 +561,27 @@ public class Media {
     }
 
 
+    private byte[] _readFile(File file, byte[] buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        InputStream is = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
+    }
+
+
+    private boolean _isCompressed(String fname) {
+        int dot = fname.lastIndexOf('.');
+        return dot != -1 && COMPRESSED_EXTENSIONS.contains(fname.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+
     /**
      * Remove records from log table in media DB for a list or files.
      * 
@@ -620,8 +667,9 @@ public class Media {
         ArrayList<Object[]> mediaRem = new ArrayList<Object[]>();
 
         for (String f : result.first) {
-            long mt = _mtime(f);
-            String csum = _checksum(getDir().concat(File.separator).concat(f));
+            String path = getDir().concat(File.separator).concat(f);
+            long mt = _mtime(path);
+            String csum = _checksum(path);
             media.add(new Object[] { f, csum, mt });
             log.add(new Object[] { f, MEDIA_ADD });
         }
@@ -649,7 +697,7 @@ public class Media {
             cur = mMediaDb.getDatabase().query("media", new String[] { "fname", "csum", "mod" }, null, null, null,
                     null, null);
             while (cur.moveToNext()) {
-                cache.put(cur.getString(0), new Pair<String, Long>(cur.getString(1), cur.getLong(1)));
+                cache.put(cur.getString(0), new Pair<String, Long>(cur.getString(1), cur.getLong(2)));
                 used.put(cur.getString(0), false);
             }
         } catch (SQLException e) {
@@ -662,6 +710,8 @@ public class Media {
 
         List<String> added = new ArrayList<String>();
         List<String> removed = new ArrayList<String>();
+        // files touched without changing their content, whose new mtime spares a checksum on the next scan
+        ArrayList<Object[]> touched = new ArrayList<Object[]>();
 
         File mediaDir = new File(getDir());
         for (File f : mediaDir.listFiles()) {
@@ -698,6 +748,8 @@ public class Media {
                     // and has different checksum?
                     if (_checksum(f.getAbsolutePath()).compareTo(cache.get(fname).first) != 0) {
                         added.add(fname);
+                    } else {
+                        touched.add(new Object[] { f.lastModified() / 1000, fname });
                     }
                 }
                 // mark as used
@@ -705,6 +757,10 @@ public class Media {
             }
         }
 
+        if (!touched.isEmpty()) {
+            mMediaDb.executeMany("update media set mod = ? where fname = ?", touched);
+        }
+
         // look for any entries in the cache that no longer exist on disk
         for (String fname : used.keySet()) {
             if (!used.get(fname)) {
@@ -91,6 +91,8 @@ public class Models {
     //
     /** Map for compiled Mustache Templates */
     private HashMap<Long, HashMap<Integer, Template[]>> mCmpldTemplateMap = new HashMap<Long, HashMap<Integer, Template[]>>();
+    /** bumped on every change to the registry, so that cached search plans can be dropped (not in libanki) */
+    private int mVersion = 0;
 
 
     //
@@ -125,7 +127,10 @@ public class Models {
      * Load registry from JSON.
      */
     public void load(String json) {
+        mCol.clearQACache();
+        mCmpldTemplateMap.clear();
         mChanged = false;
+        mVersion++;
         mModels = new HashMap<Long, JSONObject>();
         try {
             JSONObject modelarray = new JSONObject(json);
@@ -157,8 +162,16 @@ public class Models {
 
 
     public void save(JSONObject m, boolean templates) {
+        mVersion++;
+        // rendered cards may depend on the model; its mod only has a resolution of one second
+        mCol.clearQACache();
+        if (m == null) {
+            mCmpldTemplateMap.clear();
+        }
         if (m != null && m.has("id")) {
             try {
+                // the templates may have been edited; compile them again on next use
+                mCmpldTemplateMap.remove(m.getLong("id"));
                 m.put("mod", Utils.intNow());
                 m.put("usn", mCol.usn());
                 // TODO: fix empty id problem on _updaterequired (needed for model adding)
@@ -668,6 +681,7 @@ public class Models {
                 }
             }
             mCol.getDb().executeMany("update notes set flds=?,mod=?,usn=? where id = ?", r);
+            mCol.getTextIndex().update(r);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
@@ -844,13 +858,21 @@ public class Models {
      * @return
      */
     public Template[] getCmpldTemplate(long modelId, int ord, List<String> args) {
-        if (!mCmpldTemplateMap.containsKey(modelId)) {
-            mCmpldTemplateMap.put(modelId, new HashMap<Integer, Template[]>());
+        if (args != null && args.size() > 1) {
+            // browser formats; rarely used, so they are not kept
+            return compileTemplate(modelId, ord, args);
+        }
+        HashMap<Integer, Template[]> templates = mCmpldTemplateMap.get(modelId);
+        if (templates == null) {
+            templates = new HashMap<Integer, Template[]>();
+            mCmpldTemplateMap.put(modelId, templates);
         }
-        if (!mCmpldTemplateMap.get(modelId).containsKey(ord) || args != null) {
-            mCmpldTemplateMap.get(modelId).put(ord, compileTemplate(modelId, ord, args));
+        Template[] t = templates.get(ord);
+        if (t == null) {
+            t = compileTemplate(modelId, ord, null);
+            templates.put(ord, t);
         }
-        return mCmpldTemplateMap.get(modelId).get(ord);
+        return t;
     }
 
 
@@ -865,17 +887,22 @@ public class Models {
             if (args != null && args.size() > 1) {
                 qfmt = args.get(0);
                 afmt = args.get(1);
-            } else {
+            } else if (model.getInt("type") == Sched.MODEL_STD) {
                 template = model.getJSONArray("tmpls").getJSONObject(ord);
                 qfmt = template.getString("qfmt");
                 afmt = template.getString("afmt");
+            } else {
+                // cloze models have a single template, compiled once for each cloze ord
+                template = model.getJSONArray("tmpls").getJSONObject(0);
+                qfmt = template.getString("qfmt");
+                afmt = template.getString("afmt");
             }
             String format = qfmt.replace("{{cloze:", "{{cq:" + (ord + 1) + ":");
             Log.i(AnkiDroidApp.TAG, "Compiling question template \"" + format + "\"");
-            t[0] = Mustache.compiler().compile(format);
+            t[0] = sCompiler.compile(format);
             format = afmt.replace("{{cloze:", "{{ca:" + (ord + 1) + ":");
             Log.i(AnkiDroidApp.TAG, "Compiling answer template \"" + format + "\"");
-            t[1] = Mustache.compiler().compile(format);
+            t[1] = sCompiler.compile(format);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
@@ -885,8 +912,75 @@ public class Models {
     // not in libanki
     // Handle fields fetched from templates and any anki-specific formatting
     protected static final String clozeReg = "\\{\\{c%s::(.*?)(::(.*?))?\\}\\}";
+    private static final Pattern sOtherClozePattern = Pattern.compile(String.format(Locale.US, clozeReg, ".*?"));
+    private static final HashMap<String, Pattern> sClozePatterns = new HashMap<String, Pattern>();
+
+    /** Compiles templates with each tag resolved by fieldParser. */
+    private static final Mustache.Compiler sCompiler = Mustache.compiler().withResolver(new Mustache.TagResolver() {
+        @Override
+        public Object resolve(String name) {
+            return fieldParser.resolve(name);
+        }
+    });
+
+
+    /** A {{mod:extra:field}} tag, with the modifier looked up once when its template is compiled. */
+    protected static class FieldTag {
+        static final int NONE = 0;
+        static final int TEXT = 1;
+        static final int TYPE = 2;
+        static final int CLOZE = 3;
+        static final int HOOK = 4;
+
+        /** a tag without modifier */
+        static final FieldTag PLAIN = new FieldTag();
+
+        final int mMod;
+        final String mExtra;
+        final String mTag;
+        /** 'q' or 'a' for cloze modifiers */
+        final char mClozeType;
+        /** name of the filter of hook-based modifiers */
+        final String mHook;
+        /** the output of type modifiers, or of hook-based ones without a filter */
+        final String mResult;
+
+
+        private FieldTag() {
+            mMod = NONE;
+            mExtra = null;
+            mTag = null;
+            mClozeType = 0;
+            mHook = null;
+            mResult = null;
+        }
+
+
+        FieldTag(String mod, String extra, String tag, String tag_name) {
+            mExtra = extra;
+            mTag = tag;
+            if (mod.equals("text")) {
+                mMod = TEXT;
+            } else if (mod.equals("type")) {
+                mMod = TYPE;
+            } else if (mod.equals("cq") || mod.equals("ca")) {
+                mMod = CLOZE;
+            } else {
+                mMod = HOOK;
+            }
+            mClozeType = mMod == CLOZE ? mod.charAt(1) : 0;
+            mHook = mMod == HOOK ? "fmod_" + mod : null;
+            if (mMod == TYPE) {
+                mResult = String.format(Locale.US, "[[%s]]", tag_name);
+            } else if (mMod == HOOK) {
+                mResult = String.format(Locale.US, "{unknown field %s}", tag_name);
+            } else {
+                mResult = null;
+            }
+        }
+    }
 
-    protected static class fieldParser implements Mustache.VariableFetcher {
+    protected static class fieldParser implements Mustache.BoundVariableFetcher {
         private Map<String, String> _fields;
 
 
@@ -896,67 +990,73 @@ public class Models {
 
 
         public Object get(Object ctx, String tag_name) throws Exception {
-            if (tag_name.length() == 0) {
-                return null;
-            }
+            return get(ctx, tag_name, resolve(tag_name));
+        }
+
+
+        public Object get(Object ctx, String tag_name, Object binding) throws Exception {
             String txt = _fields.get(tag_name);
             if (txt != null) {
                 return txt;
             }
-
-            // field modifiers
-            String[] parts = tag_name.split(":", 3);
-            String mod = null, extra = null, tag = null;
-            if (parts.length == 1 || parts[0].equals("")) {
+            FieldTag f = (FieldTag) binding;
+            if (f.mMod == FieldTag.NONE) {
                 return null;
-            } else if (parts.length == 2) {
-                mod = parts[0];
-                tag = parts[1];
-            } else if (parts.length == 3) {
-                mod = parts[0];
-                extra = parts[1];
-                tag = parts[2];
             }
 
-            txt = _fields.get(tag);
-
-            Log.d(AnkiDroidApp.TAG, "Processing field modifier " + mod + ": extra = " + extra + ", field " + tag
-                    + " = " + txt);
+            // field modifiers
+            txt = _fields.get(f.mTag);
 
-            // built-in modifiers
-            if (mod.equals("text")) {
-                // strip html
-                if (txt != null && txt.length() > 0) {
-                    return Utils.stripHTML(txt);
-                }
-                return "";
-            } else if (mod.equals("type")) {
-                // type answer field; convert it to [[type:...]] for the gui code to process
-                return String.format(Locale.US, "[[%s]]", tag_name);
-            } else if (mod.equals("cq") || mod.equals("ca")) {
-                // cloze deletion
-                if (txt != null && txt.length() != 0 && extra != null && extra.length() != 0) {
-                    return clozeText(txt, extra, mod.charAt(1));
-                } else {
+            switch (f.mMod) {
+                case FieldTag.TEXT:
+                    // strip html
+                    if (txt != null && txt.length() > 0) {
+                        return Utils.stripHTML(txt);
+                    }
                     return "";
-                }
+                case FieldTag.TYPE:
+                    // type answer field; convert it to [[type:...]] for the gui code to process
+                    return f.mResult;
+                case FieldTag.CLOZE:
+                    // cloze deletion
+                    if (txt != null && txt.length() != 0 && f.mExtra != null && f.mExtra.length() != 0) {
+                        return clozeText(txt, f.mExtra, f.mClozeType);
+                    } else {
+                        return "";
+                    }
+                default:
+                    // hook-based field modifier
+                    if (txt == null) {
+                        txt = (String) AnkiDroidApp.getHooks().runFilter(f.mHook, "", f.mExtra, ctx, f.mTag, tag_name);
+                    } else {
+                        txt = (String) AnkiDroidApp.getHooks().runFilter(f.mHook, txt, f.mExtra, ctx, f.mTag, tag_name);
+                    }
+                    if (txt == null) {
+                        return f.mResult;
+                    }
+                    return txt;
+            }
+        }
+
+
+        /** Split TAG_NAME into modifier, extra and field, once per tag when compiling a template. */
+        public static FieldTag resolve(String tag_name) {
+            if (tag_name.length() == 0) {
+                return FieldTag.PLAIN;
+            }
+            String[] parts = tag_name.split(":", 3);
+            if (parts.length == 1 || parts[0].equals("")) {
+                return FieldTag.PLAIN;
+            } else if (parts.length == 2) {
+                return new FieldTag(parts[0], null, parts[1], tag_name);
             } else {
-                // hook-based field modifier
-                if (txt == null) {
-                    txt = (String) AnkiDroidApp.getHooks().runFilter("fmod_" + mod, "", extra, ctx, tag, tag_name);
-                } else {
-                    txt = (String) AnkiDroidApp.getHooks().runFilter("fmod_" + mod, txt, extra, ctx, tag, tag_name);
-                }
-                if (txt == null) {
-                    return String.format(Locale.US, "{unknown field %s}", tag_name);
-                }
-                return txt;
+                return new FieldTag(parts[0], parts[1], parts[2], tag_name);
             }
         }
 
 
         private static String clozeText(String txt, String ord, char type) {
-            Matcher m = Pattern.compile(String.format(Locale.US, clozeReg, ord)).matcher(txt);
+            Matcher m = _clozePattern(ord).matcher(txt);
             if (!m.find()) {
                 return "";
             }
@@ -971,7 +1071,20 @@ public class Models {
                 txt = m.replaceAll("<span class=cloze>$1</span>");
             }
             // and display other clozes normally
-            return txt.replaceAll(String.format(Locale.US, clozeReg, ".*?"), "$1");
+            return sOtherClozePattern.matcher(txt).replaceAll("$1");
+        }
+
+
+        /** The compiled clozeReg for ORD, cached as there are only a few ords in use. */
+        private static Pattern _clozePattern(String ord) {
+            synchronized (sClozePatterns) {
+                Pattern p = sClozePatterns.get(ord);
+                if (p == null) {
+                    p = Pattern.compile(String.format(Locale.US, clozeReg, ord));
+                    sClozePatterns.put(ord, p);
+                }
+                return p;
+            }
         }
     }
 
@@ -1096,13 +1209,15 @@ public class Models {
 
     /** Given a joined field string, return available template ordinals */
     public ArrayList<Integer> availOrds(JSONObject m, String flds) {
+        return availOrds(m, Utils.splitFields(flds));
+    }
+
+
+    /** Given the split fields, return available template ordinals. LIBANKI: not in libanki */
+    public ArrayList<Integer> availOrds(JSONObject m, String[] fields) {
         try {
             if (m.getInt("type") == Sched.MODEL_CLOZE) {
-                return _availClozeOrds(m, flds);
-            }
-            String[] fields = Utils.splitFields(flds);
-            for (String f : fields) {
-                f = f.trim();
+                return _availClozeOrds(m, fields, true);
             }
             ArrayList<Integer> avail = new ArrayList<Integer>();
             JSONArray reqArray = m.getJSONArray("req");
@@ -1160,7 +1275,11 @@ public class Models {
 
 
     public ArrayList<Integer> _availClozeOrds(JSONObject m, String flds, boolean allowEmpty) {
-        String[] sflds = Utils.splitFields(flds);
+        return _availClozeOrds(m, Utils.splitFields(flds), allowEmpty);
+    }
+
+
+    private ArrayList<Integer> _availClozeOrds(JSONObject m, String[] sflds, boolean allowEmpty) {
         Map<String, Pair<Integer, JSONObject>> map = fieldMap(m);
         Set<Integer> ords = new HashSet<Integer>();
         Matcher matcher1 = null;
@@ -1278,18 +1397,48 @@ public class Models {
      * a tag
      */
     public static String invertColors(String text) {
+        StringBuilder inverted = new StringBuilder(text.length());
+        invertColors(text, inverted);
+        return inverted.toString();
+    }
+
+
+    /**
+     * Append TEXT to OUT with the colors inside html tags inverted, in a single pass. The named colors white and black
+     * are replaced by their html values on the way, so they are inverted as well.
+     */
+    public static void invertColors(CharSequence text, StringBuilder out) {
         final String[] colors = { "color=\"white\"", "color=\"black\"" };
         final String[] htmlColors = { "color=\"#000000\"", "color=\"#ffffff\"" };
-        for (int i = 0; i < colors.length; i++) {
-            text = text.replace(colors[i], htmlColors[i]);
-        }
         int state = 0;
-        StringBuffer inverted = new StringBuffer(text.length());
-        for (int i = 0; i < text.length(); i++) {
+        int last = 0;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            if (text.charAt(i) != 'c') {
+                continue;
+            }
+            for (int j = 0; j < colors.length; j++) {
+                if (_regionMatches(text, i, colors[j])) {
+                    state = _invertColors(text, last, i, state, out);
+                    state = _invertColors(htmlColors[j], 0, htmlColors[j].length(), state, out);
+                    last = i + colors[j].length();
+                    i = last - 1;
+                    break;
+                }
+            }
+        }
+        _invertColors(text, last, len, state, out);
+    }
+
+
+    /** Invert the colors in TEXT[START, END) and append it to OUT. Returns the tag state at END. */
+    private static int _invertColors(CharSequence text, int start, int end, int state, StringBuilder out) {
+        for (int i = start; i < end; i++) {
             char character = text.charAt(i);
-            if (state == 1 && character == '#') {
+            if (state == 1 && character == '#' && i + 7 <= end) {
                 // TODO: handle shorter html-colors too (e.g. #0000)
-                inverted.append(invertColor(text.substring(i + 1, i + 7)));
+                out.append(character).append(invertColor(text.subSequence(i + 1, i + 7).toString()));
+                i += 6;
             } else {
                 if (character == '<') {
                     state = 1;
@@ -1297,10 +1446,23 @@ public class Models {
                 if (character == '>') {
                     state = 0;
                 }
-                inverted.append(character);
+                out.append(character);
             }
         }
-        return inverted.toString();
+        return state;
+    }
+
+
+    private static boolean _regionMatches(CharSequence text, int offset, String s) {
+        if (offset + s.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (text.charAt(offset + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
 
@@ -1360,4 +1522,9 @@ public class Models {
         return mModels;
     }
 
+
+    public int getVersion() {
+        return mVersion;
+    }
+
 }
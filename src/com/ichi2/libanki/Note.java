@@ -125,9 +125,12 @@ public class Note {
         String sfld = Utils.stripHTML(mFields[mCol.getModels().sortIdx(mModel)]);
         String tags = stringTags();
         long csum = Utils.fieldChecksum(mFields[0]);
+        String flds = joinedFields();
         mCol.getDb().execute("INSERT OR REPLACE INTO notes VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                new Object[] { mId, mGuId, mMid, mMod, mUsn, tags, joinedFields(), sfld, csum, mFlags, mData });
+                new Object[] { mId, mGuId, mMid, mMod, mUsn, tags, flds, sfld, csum, mFlags, mData });
+        mCol.getTextIndex().update(mId, mMod, flds);
         mCol.getTags().register(mTags);
+        mCol.removeFromQACache(mId);
         _postFlush();
     }
 
@@ -262,20 +265,7 @@ public class Note {
 
 
     public int dupeOrEmpty(String val) {
-        if (val.trim().length() == 0) {
-            return 1;
-        }
-        long csum = Utils.fieldChecksum(val);
-        // find any matching csums and compare
-        for (String flds : mCol.getDb().queryColumn(
-                String.class,
-                "SELECT flds FROM notes WHERE csum = " + csum + " AND id != " + (mId != 0 ? mId : 0) + " AND mid = "
-                        + mMid, 0)) {
-            if (Utils.splitFields(flds)[0].equals(val)) {
-                return 2;
-            }
-        }
-        return 0;
+        return Dupes.firstFieldStates(mCol, mMid, new String[] { val }, mId)[0];
     }
 
 
@@ -286,7 +276,8 @@ public class Note {
 
     private void _preFlush() {
         // have we been added yet?
-        mNewlyAdded = mCol.getDb().queryScalar("SELECT 1 FROM cards WHERE nid = " + mId, false) == 0;
+        mNewlyAdded = mCol.getDb().queryLongStatement("SELECT 1 FROM cards WHERE nid = ? LIMIT 1",
+                new Object[] { mId }) == 0;
     }
 
 
@@ -0,0 +1,116 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.libanki;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small LRU cache of rendered question and answer html by card, so showing a card again after undo, editing or in
+ * the browser preview doesn't run the templates and filters again.
+ * <p>
+ * An entry is only used while everything the rendering depends on is unchanged: the note's fields and tags, the
+ * model's mod, the deck name and the template arguments. Models.save() clears the whole cache, as a model can be
+ * saved twice within one second without its mod changing, and Note.flush() drops the entries of its cards.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class QACache {
+
+    private static final int SIZE = 200;
+
+    // entry layout
+    private static final int NID = 0;
+    private static final int MID = 1;
+    private static final int MODEL_MOD = 2;
+    private static final int DID = 3;
+    private static final int DECK_NAME = 4;
+    private static final int ORD = 5;
+    private static final int TAGS = 6;
+    private static final int FLDS = 7;
+    private static final int ARGS = 8;
+    private static final int QA = 9;
+
+    private LinkedHashMap<Long, Object[]> mCache;
+
+
+    public QACache() {
+        mCache = new LinkedHashMap<Long, Object[]>(SIZE * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object[]> eldest) {
+                return size() > SIZE;
+            }
+        };
+    }
+
+
+    /**
+     * The rendered q/a for DATA ([cid, nid, mid, did, ord, tags, flds], as passed to Collection._renderQA), or null
+     * if it isn't cached or is out of date.
+     */
+    public synchronized HashMap<String, String> get(Object[] data, List<String> args, long modelMod, String deckName) {
+        Object[] entry = mCache.get((Long) data[0]);
+        if (entry == null || !_matches(entry, data, args, modelMod, deckName)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        HashMap<String, String> qa = (HashMap<String, String>) entry[QA];
+        // callers may change the map they get
+        return new HashMap<String, String>(qa);
+    }
+
+
+    public synchronized void put(Object[] data, List<String> args, long modelMod, String deckName,
+            HashMap<String, String> qa) {
+        mCache.put((Long) data[0], new Object[] { data[1], data[2], modelMod, data[3], deckName, data[4], data[5],
+                data[6], args == null ? null : new ArrayList<String>(args), new HashMap<String, String>(qa) });
+    }
+
+
+    private boolean _matches(Object[] entry, Object[] data, List<String> args, long modelMod, String deckName) {
+        return entry[NID].equals(data[1]) && entry[MID].equals(data[2]) && (Long) entry[MODEL_MOD] == modelMod
+                && entry[DID].equals(data[3]) && entry[DECK_NAME].equals(deckName) && entry[ORD].equals(data[4])
+                && entry[TAGS].equals(data[5]) && entry[FLDS].equals(data[6]) && _argsEqual(entry[ARGS], args);
+    }
+
+
+    private boolean _argsEqual(Object cached, List<String> args) {
+        boolean noArgs = args == null || args.isEmpty();
+        boolean cachedNoArgs = cached == null || ((List<?>) cached).isEmpty();
+        if (noArgs || cachedNoArgs) {
+            return noArgs == cachedNoArgs;
+        }
+        return cached.equals(args);
+    }
+
+
+    /** Drop the entries of the cards of note NID. */
+    public synchronized void removeNote(long nid) {
+        Iterator<Object[]> it = mCache.values().iterator();
+        while (it.hasNext()) {
+            if (((Long) it.next()[NID]) == nid) {
+                it.remove();
+            }
+        }
+    }
+
+
+    public synchronized void clear() {
+        mCache.clear();
+    }
+}
@@ -0,0 +1,111 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled searches of Finder, so that repeating a search, or typing on after a deck:, note: or card: term, doesn't
+ * tokenize and resolve the query again. It keeps an LRU of whole query plans by query text, and the predicates of the
+ * individual commands by token.
+ * <p>
+ * Plans embed the ids of the decks and models a query resolved to, and the scheduler day; everything is dropped when
+ * the deck or model registry changes, the current deck is switched or the day rolls over.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class QueryPlanCache {
+
+    private static final int SIZE = 32;
+    private static final int PREDS_SIZE = 256;
+
+    private Collection mCol;
+    private LinkedHashMap<String, Finder.QueryPlan> mPlans;
+    private HashMap<String, String> mPreds;
+
+    private int mDecksVersion = -1;
+    private int mModelsVersion = -1;
+    private long mSelected;
+    private long mDayCutoff;
+
+
+    public QueryPlanCache(Collection col) {
+        mCol = col;
+        mPlans = new LinkedHashMap<String, Finder.QueryPlan>(SIZE * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Finder.QueryPlan> eldest) {
+                return size() > SIZE;
+            }
+        };
+        mPreds = new HashMap<String, String>();
+    }
+
+
+    /** The plan of QUERY, or null if it has to be compiled. */
+    public synchronized Finder.QueryPlan get(String query) {
+        _check();
+        return mPlans.get(query);
+    }
+
+
+    public synchronized void put(String query, Finder.QueryPlan plan) {
+        mPlans.put(query, plan);
+    }
+
+
+    /** Whether the predicate of the command TOKEN is known; the predicate itself may be null for invalid commands. */
+    public synchronized boolean hasPred(String token) {
+        _check();
+        return mPreds.containsKey(token);
+    }
+
+
+    public synchronized String getPred(String token) {
+        return mPreds.get(token);
+    }
+
+
+    public synchronized void putPred(String token, String pred) {
+        if (mPreds.size() >= PREDS_SIZE) {
+            mPreds.clear();
+        }
+        mPreds.put(token, pred);
+    }
+
+
+    public synchronized void clear() {
+        mPlans.clear();
+        mPreds.clear();
+    }
+
+
+    /** Drop everything if the decks, models, current deck or day have changed since the plans were made. */
+    private void _check() {
+        int decksVersion = mCol.getDecks().getVersion();
+        int modelsVersion = mCol.getModels().getVersion();
+        long selected = mCol.getDecks().selected();
+        long dayCutoff = mCol.getSched().getDayCutoff();
+        if (decksVersion != mDecksVersion || modelsVersion != mModelsVersion || selected != mSelected
+                || dayCutoff != mDayCutoff) {
+            clear();
+            mDecksVersion = decksVersion;
+            mModelsVersion = modelsVersion;
+            mSelected = selected;
+            mDayCutoff = dayCutoff;
+        }
+    }
+}
@@ -30,24 +30,25 @@ import android.util.Log;
 import android.util.Pair;
 
 import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.utils.LatencyHistogram;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class Sched {
 
@@ -117,14 +118,32 @@ public class Sched {
     private double[] mEtaCache = new double[] { -1, -1, -1, -1 };
 
     // Queues
-    private LinkedList<long[]> mNewQueue;
-    private LinkedList<long[]> mLrnQueue;
-    private LinkedList<long[]> mLrnDayQueue;
-    private LinkedList<long[]> mRevQueue;
+    private CardQueue mNewQueue;
+    private LrnQueue mLrnQueue;
+    private CardQueue mLrnDayQueue;
+    private CardQueue mRevQueue;
 
-    private LinkedList<Long> mNewDids;
-    private LinkedList<Long> mLrnDids;
-    private LinkedList<Long> mRevDids;
+    private CardQueue mNewDids;
+    private CardQueue mLrnDids;
+    private CardQueue mRevDids;
+
+    /** due days of the review siblings of the cards in the review queue, for _adjRevIvl */
+    private SiblingDues mSiblingDues;
+
+    /** due counts of all decks, loaded once per day and then kept up to date by deltas */
+    private volatile DeckCounts mDeckCounts;
+
+    /** upcoming cards which were already loaded and rendered by prefetch(), by id; guarded by mPrefetchLock */
+    private HashMap<Long, Card> mPrefetched = new HashMap<Long, Card>();
+    /** held while the prefetch worker renders a card and while the prefetched cards are changed */
+    private final Object mPrefetchLock = new Object();
+    /** raised by every invalidation, so that cards the worker is still loading are dropped; written under the lock */
+    private volatile int mPrefetchGeneration;
+    /** single background thread which loads and renders the prefetched cards, created on first use */
+    private ExecutorService mPrefetcher;
+
+    /** time from answering a card until the next one is rendered, recorded by the caller */
+    private LatencyHistogram mCardLatency = new LatencyHistogram();
 
     private TreeMap<Integer, Integer> mGroupConfs;
     private TreeMap<Integer, JSONObject> mConfCache;
@@ -147,10 +166,14 @@ public class Sched {
         _updateCutoff();
 
         // Initialise queues
-        mNewQueue = new LinkedList<long[]>();
-        mLrnQueue = new LinkedList<long[]>();
-        mLrnDayQueue = new LinkedList<long[]>();
-        mRevQueue = new LinkedList<long[]>();
+        mNewQueue = new CardQueue(mQueueLimit);
+        mLrnQueue = new LrnQueue(mQueueLimit);
+        mLrnDayQueue = new CardQueue(mQueueLimit);
+        mRevQueue = new CardQueue(mQueueLimit);
+        mNewDids = new CardQueue();
+        mLrnDids = new CardQueue();
+        mRevDids = new CardQueue();
+        mSiblingDues = new SiblingDues(mQueueLimit);
     }
 
 
@@ -172,7 +195,10 @@ public class Sched {
 
 
     public void reset() {
+        _commitJournal();
         _updateCutoff();
+        mSiblingDues.clear();
+        clearPrefetched();
         _resetLrn();
         _resetRev();
         _resetNew();
@@ -183,6 +209,11 @@ public class Sched {
     public boolean answerCard(Card card, int ease) {
         Log.i(AnkiDroidApp.TAG, "answerCard - ease:" + ease);
         boolean isLeech = false;
+        // remember where the card is counted before it moves
+        long oldDid = card.getDid();
+        int oldQueue = card.getQueue();
+        long oldDue = card.getDue();
+        int oldLeft = card.getLeft();
         mCol.markReview(card);
         card.setReps(card.getReps() + 1);
         boolean wasNew = (card.getQueue() == 0);
@@ -219,7 +250,21 @@ public class Sched {
         _updateStats(card, "time", card.timeTaken());
         card.setMod(Utils.intNow());
         card.setUsn(mCol.usn());
-        card.flushSched();
+        if (mCol.getAnswerJournal().isEnabled()) {
+            mCol.getAnswerJournal().flushSched(card);
+        } else {
+            card.flushSched();
+        }
+        _updateSiblingDues(card);
+        DeckCounts dc = mDeckCounts;
+        if (dc != null) {
+            // readers on other threads see the card either in its old or in its new queue
+            synchronized (dc) {
+                dc.adjust(oldDid, oldQueue, oldDue, oldLeft, -1);
+                dc.adjust(card.getDid(), card.getQueue(), card.getDue(), card.getLeft(), 1);
+            }
+        }
+        _dropPrefetched(card);
         return isLeech;
     }
 
@@ -295,7 +340,17 @@ public class Sched {
      * Unbury cards when closing.
      */
     public void onClose() {
+        _commitJournal();
         mCol.getDb().execute("UPDATE cards SET queue = type WHERE queue = -2");
+        invalidateDeckCounts();
+        clearPrefetched();
+        if (mPrefetcher != null) {
+            mPrefetcher.shutdownNow();
+            mPrefetcher = null;
+        }
+        if (mCardLatency.getCount() > 0) {
+            Log.i(AnkiDroidApp.TAG, "Card latency: " + mCardLatency);
+        }
     }
 
 
@@ -350,7 +405,7 @@ public class Sched {
             } catch (JSONException e) {
                 throw new RuntimeException(e);
             }
-            mCol.getDecks().save(g);
+            mCol.getDecks().saveCounters(g);
         }
     }
 
@@ -372,7 +427,7 @@ public class Sched {
                 ja = g.getJSONArray("revToday");
                 ja.put(1, ja.getInt(1) - rev);
                 g.put("revToday", ja);
-                mCol.getDecks().save(g);
+                mCol.getDecks().saveCounters(g);
             }
         } catch (JSONException e) {
             throw new RuntimeException(e);
@@ -441,75 +496,6 @@ public class Sched {
     }
 
 
-    private int _walkingCount() {
-        return _walkingCount(null, null, null);
-    }
-
-
-    private int _walkingCount(LinkedList<Long> dids) {
-        return _walkingCount(dids, null, null);
-    }
-
-
-    private int _walkingCount(Method limFn, Method cntFn) {
-        return _walkingCount(null, limFn, cntFn);
-    }
-
-
-    private int _walkingCount(LinkedList<Long> dids, Method limFn, Method cntFn) {
-        if (dids == null) {
-            dids = mCol.getDecks().active();
-        }
-        int tot = 0;
-        HashMap<Long, Integer> pcounts = new HashMap<Long, Integer>();
-        // for each of the active decks
-        try {
-            for (long did : dids) {
-                // get the individual deck's limit
-                int lim = 0;
-                // if (limFn != null) {
-                lim = (Integer) limFn.invoke(Sched.this, mCol.getDecks().get(did));
-                // }
-                if (lim == 0) {
-                    continue;
-                }
-                // check the parents
-                ArrayList<JSONObject> parents = mCol.getDecks().parents(did);
-                for (JSONObject p : parents) {
-                    // add if missing
-                    long id = p.getLong("id");
-                    if (!pcounts.containsKey(id)) {
-                        pcounts.put(id, (Integer) limFn.invoke(Sched.this, p));
-                    }
-                    // take minimum of child and parent
-                    lim = Math.min(pcounts.get(id), lim);
-                }
-                // see how many cards we actually have
-                int cnt = 0;
-                // if (cntFn != null) {
-                cnt = (Integer) cntFn.invoke(Sched.this, did, lim);
-                // }
-                // if non-zero, decrement from parents counts
-                for (JSONObject p : parents) {
-                    long id = p.getLong("id");
-                    pcounts.put(id, pcounts.get(id) - cnt);
-                }
-                // we may also be a parent
-                pcounts.put(did, lim - cnt);
-                // and add to running total
-                tot += cnt;
-            }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
-        return tot;
-    }
-
-
     /**
      * Deck list **************************************************************** *******************************
      */
@@ -529,7 +515,72 @@ public class Sched {
                 counts[2] += (Integer) deck[4];
             }
         }
-        return new Object[] { decks, eta(counts), mCol.cardCount() };
+        // the eta averages are reloaded together with the deck counts
+        return new Object[] { decks, eta(counts, false), _deckCounts().cardCount() };
+    }
+
+
+    /**
+     * Due counts of all decks. They are loaded with one query on first use and after every day rollover or
+     * invalidation, and kept up to date by deltas in between. LIBANKI: not in libanki
+     */
+    private synchronized DeckCounts _deckCounts() {
+        if (mDeckCounts == null || mDeckCounts.getToday() != mToday) {
+            _commitJournal();
+            mCol.getDecks().recoverOrphans();
+            mDeckCounts = new DeckCounts(this);
+            mEtaCache[0] = -1;
+        }
+        return mDeckCounts;
+    }
+
+
+    /**
+     * Drop the cached deck counts, so that they are reloaded on next use. Call after bulk changes to the cards table
+     * which don't report their cards through {@link #removeFromDeckCounts} and {@link #addToDeckCounts}.
+     */
+    public void invalidateDeckCounts() {
+        mDeckCounts = null;
+    }
+
+
+    /** Take CIDS out of the cached deck counts. Call before modifying or deleting the cards. */
+    public void removeFromDeckCounts(long[] cids) {
+        _commitJournal();
+        DeckCounts dc = mDeckCounts;
+        if (dc != null && cids.length > 0) {
+            dc.remove("id IN " + mCol.getDb().idSet("count_cids", cids));
+        }
+    }
+
+
+    /** Add CIDS to the cached deck counts. Call after inserting or modifying the cards. */
+    public void addToDeckCounts(long[] cids) {
+        _commitJournal();
+        DeckCounts dc = mDeckCounts;
+        if (dc != null && cids.length > 0) {
+            dc.add("id IN " + mCol.getDb().idSet("count_cids", cids));
+        }
+    }
+
+
+    /** Take the cards matching the sql condition WHERE out of the cached deck counts. */
+    public void removeFromDeckCounts(String where) {
+        _commitJournal();
+        DeckCounts dc = mDeckCounts;
+        if (dc != null) {
+            dc.remove(where);
+        }
+    }
+
+
+    /** Add the cards matching the sql condition WHERE to the cached deck counts. */
+    public void addToDeckCounts(String where) {
+        _commitJournal();
+        DeckCounts dc = mDeckCounts;
+        if (dc != null) {
+            dc.add(where);
+        }
     }
 
     public class DeckDueListComparator implements Comparator<Object[]> {
@@ -545,8 +596,11 @@ public class Sched {
     public ArrayList<Object[]> deckDueList(int counts) {
         // DIFFERS FROM LIBANKI: finds all decks, also it swaps the position of new and rev in the results!
         _checkDay();
-        mCol.getDecks().recoverOrphans();
         ArrayList<Object[]> dids = new ArrayList<Object[]>();
+        DeckCounts dc = null;
+        if (counts > DECK_INFORMATION_NAMES) {
+            dc = _deckCounts();
+        }
         for (JSONObject g : mCol.getDecks().all()) {
             try {
                 long did = g.getLong("id");
@@ -557,19 +611,10 @@ public class Sched {
                 float allProgress = -1.0f;
 
                 if (counts > DECK_INFORMATION_NAMES) {
-                    LinkedList<Long> ldid = new LinkedList<Long>();
-                    ldid.add(did);
-                    for (Long c : mCol.getDecks().children(did).values()) {
-                        ldid.add(c);
-                    }
-                    String didLimit = Utils.ids2str(ldid);
-                    newCount = _walkingCount(ldid,
-                            Sched.class.getDeclaredMethod("_deckNewLimitSingle", JSONObject.class),
-                            Sched.class.getDeclaredMethod("_cntFnNew", long.class, int.class));
-                    lrnCount = _cntFnLrn(didLimit);
-                    revCount = _walkingCount(ldid,
-                            Sched.class.getDeclaredMethod("_deckRevLimitSingle", JSONObject.class),
-                            Sched.class.getDeclaredMethod("_cntFnRev", long.class, int.class));
+                    long[] ldid = dc.subtree(did);
+                    newCount = dc.walkingCountNew(ldid);
+                    lrnCount = _cntFnLrn(dc, ldid);
+                    revCount = dc.walkingCountRev(ldid);
                     // if (counts > DECK_INFORMATION_SIMPLE_COUNTS) {
                     // float totalNewCount = newCount(didLimit);
                     // float totalCount = cardCount(didLimit);
@@ -585,8 +630,6 @@ public class Sched {
                         allProgress });
             } catch (JSONException e) {
                 throw new RuntimeException(e);
-            } catch (NoSuchMethodException e) {
-                throw new RuntimeException(e);
             }
         }
         Collections.sort(dids, new DeckDueListComparator());
@@ -710,6 +753,185 @@ public class Sched {
     }
 
 
+    /**
+     * Prefetching ******************************************************************************************
+     */
+
+    /**
+     * Have up to N cards which are likely to be returned by the next calls of getCard() loaded and rendered in the
+     * background, so they can be handed out without any database access or rendering. The candidates are peeked from
+     * the heads of the queues which are already filled, in the order _getCard() looks at them; the queues themselves
+     * are left untouched. Entries which are no longer candidates are dropped. Returns at once; the cards are loaded
+     * and rendered by a single worker thread. Call after the current card has been shown. LIBANKI: not in libanki
+     */
+    public void prefetch(int n) {
+        if (!mHaveQueues) {
+            return;
+        }
+        final ArrayList<Long> missing = new ArrayList<Long>();
+        final int generation;
+        synchronized (mPrefetchLock) {
+            ArrayList<Long> upcoming = _upcomingIds(n);
+            mPrefetched.keySet().retainAll(upcoming);
+            for (long id : upcoming) {
+                if (!mPrefetched.containsKey(id)) {
+                    if (mCol.getAnswerJournal().isPending(id)) {
+                        _commitJournal();
+                    }
+                    missing.add(id);
+                }
+            }
+            // whatever an older request is still loading is either in MISSING again or no longer wanted
+            generation = ++mPrefetchGeneration;
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        if (mPrefetcher == null) {
+            mPrefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Prefetcher");
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        mPrefetcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                _prefetch(missing, generation);
+            }
+        });
+    }
+
+
+    /**
+     * Load and render the cards IDS on the prefetch worker. The database is read without holding mPrefetchLock, as
+     * the reviewer's task may hold the database in a transaction while it waits for the lock; rendering needs only
+     * the models and decks in memory and runs under the lock, so that an invalidation waits for it to finish.
+     */
+    private void _prefetch(ArrayList<Long> ids, int generation) {
+        try {
+            for (long id : ids) {
+                if (generation != mPrefetchGeneration) {
+                    return;
+                }
+                Card card = mCol.getCard(id);
+                card.note();
+                synchronized (mPrefetchLock) {
+                    if (generation != mPrefetchGeneration) {
+                        return;
+                    }
+                    card._getQA(false);
+                    mPrefetched.put(id, card);
+                }
+            }
+        } catch (RuntimeException e) {
+            // only an optimisation, e.g. the collection was closed meanwhile; the cards are loaded again when due
+            Log.w(AnkiDroidApp.TAG, "Sched - prefetching cards failed: " + e);
+        }
+    }
+
+
+    private ArrayList<Long> _upcomingIds(int n) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        double cutoff = Utils.now();
+        try {
+            cutoff += mCol.getConf().getInt("collapseTime");
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        if (!mLrnQueue.isEmpty() && mLrnQueue.getFirstDue() < cutoff) {
+            ids.add(mLrnQueue.getFirst());
+        }
+        if (_timeForNewCard()) {
+            _addUpcoming(ids, mNewQueue, n);
+        }
+        _addUpcoming(ids, mRevQueue, n);
+        _addUpcoming(ids, mLrnDayQueue, n);
+        _addUpcoming(ids, mNewQueue, n);
+        return ids;
+    }
+
+
+    private void _addUpcoming(ArrayList<Long> ids, CardQueue queue, int n) {
+        for (int i = 0; i < queue.size() && ids.size() < n; i++) {
+            long id = queue.get(i);
+            if (!ids.contains(id)) {
+                ids.add(id);
+            }
+        }
+    }
+
+
+    /** The card ID, taken from the prefetched cards if it was loaded ahead of time. */
+    private Card _card(long id) {
+        Card card;
+        synchronized (mPrefetchLock) {
+            card = mPrefetched.remove(id);
+        }
+        if (mCol.getAnswerJournal().isPending(id)) {
+            // answered before and not written yet, e.g. a learning card coming back
+            _commitJournal();
+            card = null;
+        }
+        if (card == null) {
+            card = mCol.getCard(id);
+        }
+        return card;
+    }
+
+
+    /**
+     * Forget the prefetched copies of CARD and of its siblings, as answering it changed the card and may have changed
+     * the note (leech tag).
+     */
+    private void _dropPrefetched(Card card) {
+        synchronized (mPrefetchLock) {
+            mPrefetchGeneration++;
+            Iterator<Card> it = mPrefetched.values().iterator();
+            while (it.hasNext()) {
+                Card c = it.next();
+                if (c.getId() == card.getId() || c.getNid() == card.getNid()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Forget all prefetched cards, including those the worker is still loading. Call whenever cards, notes, models or
+     * decks were changed outside of the scheduler; once this returns, the worker is not rendering anything.
+     */
+    public void clearPrefetched() {
+        synchronized (mPrefetchLock) {
+            mPrefetchGeneration++;
+            mPrefetched.clear();
+        }
+    }
+
+
+    /**
+     * Write answers collected by the write-behind journal, before the cards table is read or changed by anything
+     * which would otherwise see their old state. LIBANKI: not in libanki
+     */
+    private void _commitJournal() {
+        mCol.getAnswerJournal().commit();
+    }
+
+
+    /**
+     * Time from answering a card until the next one is shown, as recorded by DeckTask for the reviewer, e.g. to compare
+     * sessions with and without prefetching. LIBANKI: not in libanki
+     */
+    public LatencyHistogram getCardLatency() {
+        return mCardLatency;
+    }
+
+
     //
     // /** LIBANKI: not in libanki */
     // public boolean removeCardFromQueues(Card card) {
@@ -758,24 +980,13 @@ public class Sched {
      */
 
     private void _resetNewCount() {
-        try {
-            mNewCount = _walkingCount(Sched.class.getDeclaredMethod("_deckNewLimitSingle", JSONObject.class),
-                    Sched.class.getDeclaredMethod("_cntFnNew", long.class, int.class));
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-
-    private int _cntFnNew(long did, int lim) {
-        return mCol.getDb().queryScalar(
-                "SELECT count() FROM (SELECT 1 FROM cards WHERE did = " + did + " AND queue = 0 LIMIT " + lim + ")");
+        mNewCount = _deckCounts().walkingCountNew(Utils.toPrimitive(mCol.getDecks().active()));
     }
 
 
     private void _resetNew() {
         _resetNewCount();
-        mNewDids = new LinkedList<Long>(mCol.getDecks().active());
+        _fillDids(mNewDids);
         mNewQueue.clear();
         _updateNewCardRatio();
     }
@@ -788,6 +999,7 @@ public class Sched {
         if (mNewCount == 0) {
             return false;
         }
+        _commitJournal();
         while (!mNewDids.isEmpty()) {
             long did = mNewDids.getFirst();
             int lim = Math.min(mQueueLimit, _deckNewLimit(did));
@@ -801,7 +1013,7 @@ public class Sched {
                             .rawQuery("SELECT id, due FROM cards WHERE did = " + did + " AND queue = 0 LIMIT " + lim,
                                     null);
                     while (cur.moveToNext()) {
-                        mNewQueue.add(new long[] { cur.getLong(0), cur.getLong(1) });
+                        mNewQueue.add(cur.getLong(0), cur.getLong(1));
                     }
                 } finally {
                     if (cur != null && !cur.isClosed()) {
@@ -823,14 +1035,15 @@ public class Sched {
         if (!_fillNew()) {
             return null;
         }
-        long[] item = mNewQueue.remove();
+        long due = mNewQueue.getFirstDue();
+        long id = mNewQueue.remove();
         // move any siblings to the end?
         try {
             JSONObject conf = mCol.getDecks().confForDid(mNewDids.getFirst());
             if (conf.getInt("dyn") != 0 || conf.getJSONObject("new").getBoolean("separate")) {
                 int n = mNewQueue.size();
-                while (!mNewQueue.isEmpty() && mNewQueue.getFirst()[1] == item[1]) {
-                    mNewQueue.add(mNewQueue.remove());
+                while (!mNewQueue.isEmpty() && mNewQueue.getFirstDue() == due) {
+                    mNewQueue.rotate();
                     n -= 1;
                     if (n == 0) {
                         // we only have one fact in the queue; stop rotating
@@ -842,7 +1055,7 @@ public class Sched {
             throw new RuntimeException(e);
         }
         mNewCount -= 1;
-        return mCol.getCard(item[0]);
+        return _card(id);
     }
 
 
@@ -891,38 +1104,25 @@ public class Sched {
 
 
     private int _deckNewLimit(long did) {
-        return _deckNewLimit(did, null);
+        return _deckNewLimit(did, false);
     }
 
 
-    private int _deckNewLimit(long did, Method fn) {
-        try {
-            if (fn == null) {
-                fn = Sched.class.getDeclaredMethod("_deckNewLimitSingle", JSONObject.class);
-            }
-            ArrayList<JSONObject> decks = mCol.getDecks().parents(did);
-            decks.add(mCol.getDecks().get(did));
-            int lim = -1;
-            // for the deck and each of its parents
-            int rem = 0;
-            for (JSONObject g : decks) {
-                rem = (Integer) fn.invoke(Sched.this, g);
-                if (lim == -1) {
-                    lim = rem;
-                } else {
-                    lim = Math.min(rem, lim);
-                }
+    private int _deckNewLimit(long did, boolean rev) {
+        ArrayList<JSONObject> decks = mCol.getDecks().parents(did);
+        decks.add(mCol.getDecks().get(did));
+        int lim = -1;
+        // for the deck and each of its parents
+        int rem = 0;
+        for (JSONObject g : decks) {
+            rem = rev ? _deckRevLimitSingle(g) : _deckNewLimitSingle(g);
+            if (lim == -1) {
+                lim = rem;
+            } else {
+                lim = Math.min(rem, lim);
             }
-            return lim;
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
         }
+        return lim;
     }
 
 
@@ -960,11 +1160,22 @@ public class Sched {
     }
 
 
+    /** LIBANKI: not in libanki */
+    private int _cntFnLrn(DeckCounts dc, long[] dids) {
+        int cnt = dc.lrnCount(dids, mReportLimit);
+        if (cnt == -1) {
+            // over the report limit; let the query decide which cards are counted
+            cnt = _cntFnLrn(Utils.ids2str(dids));
+        }
+        return cnt;
+    }
+
+
     private void _resetLrn() {
         _resetLrnCount();
         mLrnQueue.clear();
         mLrnDayQueue.clear();
-        mLrnDids = mCol.getDecks().active();
+        _fillDids(mLrnDids);
     }
 
 
@@ -976,6 +1187,7 @@ public class Sched {
         if (!mLrnQueue.isEmpty()) {
             return true;
         }
+        _commitJournal();
         Cursor cur = null;
         mLrnQueue.clear();
         try {
@@ -985,11 +1197,10 @@ public class Sched {
                     .rawQuery(
                             "SELECT due, id FROM cards WHERE did IN " + _deckLimit() + " AND queue = 1 AND due < "
                                     + mDayCutoff + " LIMIT " + mReportLimit, null);
+            // as it arrives sorted by did first, the heap sorts it
             while (cur.moveToNext()) {
-                mLrnQueue.add(new long[] { cur.getLong(0), cur.getLong(1) });
+                mLrnQueue.add(cur.getLong(0), cur.getLong(1));
             }
-            // as it arrives sorted by did first, we need to sort it
-            Collections.sort(mLrnQueue, new DueComparator());
             return !mLrnQueue.isEmpty();
         } finally {
             if (cur != null && !cur.isClosed()) {
@@ -1014,9 +1225,9 @@ public class Sched {
                     throw new RuntimeException(e);
                 }
             }
-            if (mLrnQueue.getFirst()[0] < cutoff) {
-                long id = mLrnQueue.remove()[1];
-                Card card = mCol.getCard(id);
+            if (mLrnQueue.getFirstDue() < cutoff) {
+                long id = mLrnQueue.remove();
+                Card card = _card(id);
                 mLrnCount -= card.getLeft() / 1000;
                 return card;
             }
@@ -1033,6 +1244,7 @@ public class Sched {
         if (!mLrnDayQueue.isEmpty()) {
             return true;
         }
+        _commitJournal();
         while (mLrnDids.size() > 0) {
             long did = mLrnDids.getFirst();
             // fill the queue with the current did
@@ -1046,7 +1258,7 @@ public class Sched {
                                 "SELECT id FROM cards WHERE did = " + did + " AND queue = 3 AND due <= " + mToday
                                         + " LIMIT " + mQueueLimit, null);
                 while (cur.moveToNext()) {
-                    mLrnDayQueue.add(new long[] { cur.getLong(0) });
+                    mLrnDayQueue.add(cur.getLong(0));
                 }
             } finally {
                 if (cur != null && !cur.isClosed()) {
@@ -1057,7 +1269,7 @@ public class Sched {
                 // order
                 Random r = new Random();
                 r.setSeed(mToday);
-                Collections.shuffle(mLrnDayQueue, r);
+                mLrnDayQueue.shuffle(r);
                 // is the current did empty?
                 if (mLrnDayQueue.size() < mQueueLimit) {
                     mLrnDids.remove();
@@ -1074,7 +1286,7 @@ public class Sched {
     private Card _getLrnDayCard() {
         if (_fillLrnDay()) {
             mLrnCount -= 1;
-            return mCol.getCard(mLrnDayQueue.remove()[0]);
+            return _card(mLrnDayQueue.remove());
         }
         return null;
     }
@@ -1150,7 +1362,7 @@ public class Sched {
                 // it twice in a row
                 card.setQueue(1);
                 if (!mLrnQueue.isEmpty() && mRevCount == 0 && mNewCount == 0) {
-                    long smallestDue = mLrnQueue.getFirst()[0];
+                    long smallestDue = mLrnQueue.getFirstDue();
                     card.setDue(Math.max(card.getDue(), smallestDue + 1));
                 }
                 _sortIntoLrn(card.getDue(), card.getId());
@@ -1169,16 +1381,7 @@ public class Sched {
      * Sorts a card into the lrn queue LIBANKI: not in libanki
      */
     private void _sortIntoLrn(long due, long id) {
-        Iterator i = mLrnQueue.listIterator();
-        int idx = 0;
-        while (i.hasNext()) {
-            if (((long[]) i.next())[0] > due) {
-                break;
-            } else {
-                idx++;
-            }
-        }
-        mLrnQueue.add(idx, new long[] { due, id });
+        mLrnQueue.add(due, id);
     }
 
 
@@ -1338,8 +1541,12 @@ public class Sched {
 
 
     private void log(long id, int usn, int ease, int ivl, int lastIvl, int factor, int timeTaken, int type) {
+        if (mCol.getAnswerJournal().isEnabled()) {
+            mCol.getAnswerJournal().log(id, usn, ease, ivl, lastIvl, factor, timeTaken, type);
+            return;
+        }
         try {
-            mCol.getDb().execute("INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
+            mCol.getDb().executeStatement("INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
                     new Object[] { Utils.now() * 1000, id, usn, ease, ivl, lastIvl, factor, timeTaken, type });
         } catch (SQLiteConstraintException e) {
             try {
@@ -1371,6 +1578,7 @@ public class Sched {
      * Remove failed cards from the learning queue.
      */
     private void removeFailed(long[] ids, boolean expiredOnly) {
+        _commitJournal();
         String extra;
         if (ids != null && ids.length > 0) {
             extra = " AND id IN " + Utils.ids2str(ids);
@@ -1381,6 +1589,7 @@ public class Sched {
         if (expiredOnly) {
             extra += " AND odue <= " + mToday;
         }
+        mSiblingDues.clear();
         boolean mod = mCol.getDb().getMod();
         mCol.getDb().execute(
                 String.format(Locale.US, "update cards set " + "due = odue, queue = 2, mod = %d, usn = %d, odue = 0 "
@@ -1389,15 +1598,18 @@ public class Sched {
             // we don't want to bump the mod time when removing expired
             mCol.getDb().setMod(mod);
         }
+        if (ids == null || ids.length == 0) {
+            invalidateDeckCounts();
+        }
     }
 
 
     private int _lrnForDeck(long did) {
         try {
-            return mCol.getDb().queryScalar(
-                    "SELECT sum(left / 1000) FROM (SELECT left FROM cards WHERE did = " + did
-                            + " AND queue = 1 AND due < " + (Utils.intNow() + mCol.getConf().getInt("collapseTime"))
-                            + " LIMIT " + mReportLimit, false);
+            return (int) mCol.getDb().queryLongStatement(
+                    "SELECT sum(left / 1000) FROM (SELECT left FROM cards WHERE did = ? AND queue = 1 AND due < ? "
+                            + "LIMIT ?)",
+                    new Object[] { did, Utils.intNow() + mCol.getConf().getInt("collapseTime"), mReportLimit });
         } catch (SQLException e) {
             throw new RuntimeException(e);
         } catch (JSONException e) {
@@ -1411,15 +1623,11 @@ public class Sched {
      */
 
     private int _deckRevLimit(long did) {
-        try {
-            return _deckNewLimit(did, Sched.class.getDeclaredMethod("_deckRevLimitSingle", JSONObject.class));
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
+        return _deckNewLimit(did, true);
     }
 
 
-    private int _deckRevLimitSingle(JSONObject d) {
+    public int _deckRevLimitSingle(JSONObject d) {
         try {
             if (d.getInt("dyn") != 0) {
                 return mReportLimit;
@@ -1433,26 +1641,14 @@ public class Sched {
 
 
     private void _resetRevCount() {
-        try {
-            mRevCount = _walkingCount(Sched.class.getDeclaredMethod("_deckRevLimitSingle", JSONObject.class),
-                    Sched.class.getDeclaredMethod("_cntFnRev", long.class, int.class));
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-
-    private int _cntFnRev(long did, int lim) {
-        return mCol.getDb().queryScalar(
-                "SELECT count() FROM (SELECT id FROM cards WHERE did = " + did + " AND queue = 2 and due <= " + mToday
-                        + " LIMIT " + lim + ")");
+        mRevCount = _deckCounts().walkingCountRev(Utils.toPrimitive(mCol.getDecks().active()));
     }
 
 
     private void _resetRev() {
         _resetRevCount();
         mRevQueue.clear();
-        mRevDids = mCol.getDecks().active();
+        _fillDids(mRevDids);
     }
 
 
@@ -1463,6 +1659,7 @@ public class Sched {
         if (mRevCount == 0) {
             return false;
         }
+        _commitJournal();
         while (mRevDids.size() > 0) {
             long did = mRevDids.getFirst();
             int lim = Math.min(mQueueLimit, _deckRevLimit(did));
@@ -1478,7 +1675,7 @@ public class Sched {
                                     "SELECT id FROM cards WHERE did = " + did + " AND queue = 2 AND due <= " + mToday
                                             + " LIMIT " + lim, null);
                     while (cur.moveToNext()) {
-                        mRevQueue.add(new long[] { cur.getLong(0) });
+                        mRevQueue.add(cur.getLong(0));
                     }
                 } finally {
                     if (cur != null && !cur.isClosed()) {
@@ -1486,6 +1683,10 @@ public class Sched {
                     }
                 }
                 if (!mRevQueue.isEmpty()) {
+                    // sibling dues for the whole batch, so answering needs no query (not in libanki)
+                    mSiblingDues.clear();
+                    _loadSiblingDues("nid IN (SELECT nid FROM cards WHERE did = " + did
+                            + " AND queue = 2 AND due <= " + mToday + " LIMIT " + lim + ")");
                     // ordering
                     try {
                         if (mCol.getDecks().get(did).getInt("dyn") != 0) {
@@ -1493,7 +1694,7 @@ public class Sched {
                         } else {
                             Random r = new Random();
                             r.setSeed(mToday);
-                            Collections.shuffle(mRevQueue, r);
+                            mRevQueue.shuffle(r);
                         }
                     } catch (JSONException e) {
                         throw new RuntimeException(e);
@@ -1515,7 +1716,7 @@ public class Sched {
     private Card _getRevCard() {
         if (_fillRev()) {
             mRevCount -= 1;
-            return mCol.getCard(mRevQueue.remove()[0]);
+            return _card(mRevQueue.remove());
         } else {
             return null;
         }
@@ -1685,13 +1886,15 @@ public class Sched {
         JSONObject conf;
         try {
             conf = _revConf(card);
-            // find sibling positions
-            ArrayList<Integer> dues = mCol.getDb()
-                    .queryColumn(
-                            Integer.class,
-                            "SELECT due FROM cards WHERE nid = " + card.getNid() + " AND type = 2 AND id != "
-                                    + card.getId(), 0);
-            if (dues.size() == 0 || !dues.contains(idealDue)) {
+            // find sibling positions; normally prefetched by _fillRev
+            long nid = card.getNid();
+            long cid = card.getId();
+            if (!mSiblingDues.has(nid)) {
+                _commitJournal();
+                _loadSiblingDues("nid = " + nid);
+                mSiblingDues.addNote(nid);
+            }
+            if (!mSiblingDues.contains(nid, cid, idealDue)) {
                 return idealIvl;
             } else {
                 int leeway = Math.max(conf.getInt("minSpace"), (int) (idealIvl * conf.getDouble("fuzz")));
@@ -1701,10 +1904,10 @@ public class Sched {
                     // loop through possible due dates for an empty one
                     for (int diff = 1; diff < leeway + 1; diff++) {
                         // ensure we're due at least tomorrow
-                        if ((idealIvl - diff >= 1) && !dues.contains(idealDue - diff)) {
+                        if ((idealIvl - diff >= 1) && !mSiblingDues.contains(nid, cid, idealDue - diff)) {
                             fudge = -diff;
                             break;
-                        } else if (!dues.contains(idealDue + diff)) {
+                        } else if (!mSiblingDues.contains(nid, cid, idealDue + diff)) {
                             fudge = diff;
                             break;
                         }
@@ -1718,6 +1921,35 @@ public class Sched {
     }
 
 
+    /** Load the due days of all review cards of the notes matching NIDLIMIT. LIBANKI: not in libanki */
+    private void _loadSiblingDues(String nidLimit) {
+        Cursor cur = null;
+        try {
+            cur = mCol.getDb().getDatabase()
+                    .rawQuery("SELECT nid, id, due FROM cards WHERE type = 2 AND " + nidLimit, null);
+            while (cur.moveToNext()) {
+                mSiblingDues.put(cur.getLong(0), cur.getLong(1), cur.getLong(2));
+            }
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+    }
+
+
+    /** Keep the sibling dues in step with an answered card. LIBANKI: not in libanki */
+    private void _updateSiblingDues(Card card) {
+        if (mSiblingDues.has(card.getNid())) {
+            if (card.getType() == 2) {
+                mSiblingDues.put(card.getNid(), card.getId(), card.getDue());
+            } else {
+                mSiblingDues.remove(card.getNid(), card.getId());
+            }
+        }
+    }
+
+
     /**
      * Dynamic deck handling ******************************************************************
      * *****************************
@@ -1729,7 +1961,9 @@ public class Sched {
     }
 
 
-    public List<Long> rebuildDyn(long did) {
+    /** Returns the number of cards moved into the deck. LIBANKI: returns the card ids */
+    public int rebuildDyn(long did) {
+        _commitJournal();
         if (did == 0) {
             did = mCol.getDecks().selected();
         }
@@ -1737,26 +1971,26 @@ public class Sched {
         try {
             if (deck.getInt("dyn") == 0) {
                 Log.e(AnkiDroidApp.TAG, "error: deck is not a dynamic deck");
-                return null;
+                return 0;
             }
         } catch (JSONException e1) {
             throw new RuntimeException(e1);
         }
         // move any existing cards back first, then fill
         emptyDyn(did);
-        List<Long> ids = _fillDyn(deck);
-        if (ids.isEmpty()) {
-            return null;
+        int cnt = _fillDyn(deck);
+        if (cnt == 0) {
+            return 0;
         }
         // and change to our new deck
         mCol.getDecks().select(did);
-        return ids;
+        return cnt;
     }
 
 
-    private List<Long> _fillDyn(JSONObject deck) {
+    private int _fillDyn(JSONObject deck) {
         JSONArray terms;
-        List<Long> ids;
+        int cnt;
         try {
             terms = deck.getJSONArray("terms").getJSONArray(0);
             String search = terms.getString(0);
@@ -1764,16 +1998,17 @@ public class Sched {
             int order = terms.getInt(2);
             String orderlimit = _dynOrder(order, limit);
             search += " -is:suspended -deck:filtered";
-            ids = mCol.findCards(search, orderlimit);
-            if (ids.isEmpty()) {
-                return ids;
+            // the search results stay in a temporary table, which the move joins against
+            cnt = mCol.findCardsToTable(search, orderlimit);
+            if (cnt == 0) {
+                return 0;
             }
             // move the cards over
-            _moveToDyn(deck.getLong("id"), ids);
+            _moveToDyn(deck.getLong("id"));
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
-        return ids;
+        return cnt;
     }
 
 
@@ -1783,19 +2018,31 @@ public class Sched {
 
 
     public void emptyDyn(long did, String lim) {
+        _commitJournal();
         if (lim == null) {
             lim = "did = " + did;
         }
+        mSiblingDues.clear();
+        long[] cids = null;
+        if (mDeckCounts != null) {
+            // the cards leave the deck, so remember them for the counts
+            cids = Utils.arrayList2array(mCol.getDb().queryColumn(Long.class, "SELECT id FROM cards WHERE " + lim, 0));
+            removeFromDeckCounts(cids);
+        }
         // move out of cram queue
         mCol.getDb().execute(
                 "UPDATE cards SET did = odid, queue = (CASE WHEN type = 1 THEN 0 "
                         + "ELSE type END), type = (CASE WHEN type = 1 THEN 0 ELSE type END), "
                         + "due = odue, odue = 0, odid = 0, usn = ?, mod = ? where " + lim,
                 new Object[] { mCol.usn(), Utils.intNow() });
+        if (cids != null) {
+            addToDeckCounts(cids);
+        }
     }
 
 
     public void remFromDyn(long[] cids) {
+        _commitJournal();
         emptyDyn(0, "id IN " + Utils.ids2str(cids) + " AND odid");
     }
 
@@ -1838,22 +2085,22 @@ public class Sched {
     }
 
 
-    private void _moveToDyn(long did, List<Long> ids) {
-        ArrayList<Object[]> data = new ArrayList<Object[]>();
-        long t = Utils.intNow();
-        int u = mCol.usn();
-        for (long c = 0; c < ids.size(); c++) {
-            // start at -100000 so that reviews are all due
-            data.add(new Object[] { did, -100000 + c, t, u, ids.get((int) c) });
-        }
+    /** Move the cards of the last {@link Collection#findCardsToTable} search into DID, in search order. */
+    private void _moveToDyn(long did) {
+        String lim = "id IN (SELECT id FROM " + Finder.SEARCH_TABLE + ")";
         // due reviews stay in the review queue. careful: can't use "odid or did", as sqlite converts to boolean
         String queue = String.format(Locale.US,
                 "(CASE WHEN type = 2 AND (CASE WHEN odue THEN odue <= %d ELSE due <= %d END) THEN 2 ELSE 0 END)",
                 mToday, mToday);
-        mCol.getDb().executeMany(
+        mSiblingDues.clear();
+        removeFromDeckCounts(lim);
+        // start at -100000 so that reviews are all due
+        mCol.getDb().execute(
                 String.format(Locale.US, "UPDATE cards SET " + "odid = (CASE WHEN odid THEN odid ELSE did END), "
-                        + "odue = (CASE WHEN odue THEN odue ELSE due END), "
-                        + "did = ?, queue = %s, due = ?, mod = ?, usn = ? WHERE id = ?", queue), data);
+                        + "odue = (CASE WHEN odue THEN odue ELSE due END), did = ?, queue = %s, "
+                        + "due = (SELECT pos FROM %s s WHERE s.id = cards.id) - 100001, mod = ?, usn = ? WHERE %s",
+                        queue, Finder.SEARCH_TABLE, lim), new Object[] { did, Utils.intNow(), mCol.usn() });
+        addToDeckCounts(lim);
     }
 
 
@@ -2015,6 +2262,15 @@ public class Sched {
     }
 
 
+    /** Refill DIDS with the active decks. LIBANKI: not in libanki */
+    private void _fillDids(CardQueue dids) {
+        dids.clear();
+        for (long did : mCol.getDecks().active()) {
+            dids.add(did);
+        }
+    }
+
+
     private boolean _resched(Card card) {
         JSONObject conf = _cardConf(card);
         try {
@@ -2235,11 +2491,14 @@ public class Sched {
      * Suspend cards.
      */
     public void suspendCards(long[] ids) {
+        clearPrefetched();
         remFromDyn(ids);
+        removeFromDeckCounts(ids);
         removeFailed(ids);
         mCol.getDb().execute(
                 "UPDATE cards SET queue = -1, mod = " + Utils.intNow() + ", usn = " + mCol.usn() + " WHERE id IN "
                         + Utils.ids2str(ids));
+        addToDeckCounts(ids);
     }
 
 
@@ -2247,9 +2506,13 @@ public class Sched {
      * Unsuspend cards
      */
     public void unsuspendCards(long[] ids) {
+        _commitJournal();
+        clearPrefetched();
+        removeFromDeckCounts(ids);
         mCol.getDb().execute(
                 "UPDATE cards SET queue = type, mod = " + Utils.intNow() + ", usn = " + mCol.usn()
                         + " WHERE queue = -1 AND id IN " + Utils.ids2str(ids));
+        addToDeckCounts(ids);
     }
 
 
@@ -2257,12 +2520,16 @@ public class Sched {
      * Bury all cards for note until next session.
      */
     public void buryNote(long nid) {
+        _commitJournal();
         mCol.setDirty();
+        clearPrefetched();
         long[] cids = Utils.arrayList2array(mCol.getDb().queryColumn(Long.class,
                 "SELECT id FROM cards WHERE nid = " + nid, 0));
         remFromDyn(cids);
+        removeFromDeckCounts(cids);
         removeFailed(cids);
         mCol.getDb().execute("UPDATE cards SET queue = -2 WHERE nid = " + nid);
+        addToDeckCounts(cids);
     }
 
 
@@ -2320,28 +2587,13 @@ public class Sched {
             if (allDecks) {
                 if (reloadNonselected) {
                     mNonselectedDues = 0;
+                    DeckCounts dc = _deckCounts();
                     for (JSONObject g : mCol.getDecks().all()) {
-                        try {
-                            if (!g.getString("name").matches(".*::.*")) {
-                                long did = g.getLong("id");
-                                LinkedList<Long> ldid = new LinkedList<Long>();
-                                ldid.add(did);
-                                for (Long c : mCol.getDecks().children(did).values()) {
-                                    ldid.add(c);
-                                }
-                                String didLimit = Utils.ids2str(ldid);
-                                mNonselectedDues += _walkingCount(ldid,
-                                        Sched.class.getDeclaredMethod("_deckNewLimitSingle", JSONObject.class),
-                                        Sched.class.getDeclaredMethod("_cntFnNew", long.class, int.class));
-                                mNonselectedDues += _cntFnLrn(didLimit);
-                                mNonselectedDues += _walkingCount(ldid,
-                                        Sched.class.getDeclaredMethod("_deckRevLimitSingle", JSONObject.class),
-                                        Sched.class.getDeclaredMethod("_cntFnRev", long.class, int.class));
-                            }
-                        } catch (JSONException e) {
-                            throw new RuntimeException(e);
-                        } catch (NoSuchMethodException e) {
-                            throw new RuntimeException(e);
+                        if (!g.getString("name").matches(".*::.*")) {
+                            long[] ldid = dc.subtree(g.getLong("id"));
+                            mNonselectedDues += dc.walkingCountNew(ldid);
+                            mNonselectedDues += _cntFnLrn(dc, ldid);
+                            mNonselectedDues += dc.walkingCountRev(ldid);
                         }
                     }
                     mNonselectedDues -= mNewCount + mLrnCount + mRevCount;
@@ -2468,7 +2720,11 @@ public class Sched {
 
     /** Put cards at the end of the new queue. */
     public void forgetCards(long[] ids) {
+        _commitJournal();
+        mSiblingDues.clear();
+        removeFromDeckCounts(ids);
         mCol.getDb().execute("update cards set type=0,queue=0,ivl=0 where id in " + Utils.ids2str(ids));
+        addToDeckCounts(ids);
         int pmax = mCol.getDb().queryScalar("SELECT max(due) FROM cards WHERE type=0", false);
         // takes care of mod + usn
         sortCards(ids, pmax + 1);
@@ -2483,6 +2739,7 @@ public class Sched {
      * @param imax The maximum interval (inclusive)
      */
     public void reschedCards(long[] ids, int imin, int imax) {
+        _commitJournal();
         ArrayList<Object[]> d = new ArrayList<Object[]>();
         int t = mToday;
         long mod = Utils.intNow();
@@ -2491,8 +2748,11 @@ public class Sched {
             int r = rnd.nextInt(imax - imin + 1) + imin;
             d.add(new Object[] { Math.max(1, r), r + t, mCol.usn(), mod, 2500, id });
         }
+        mSiblingDues.clear();
+        removeFromDeckCounts(ids);
         mCol.getDb().executeMany(
                 "update cards set type=2,queue=2,ivl=?,due=?, " + "usn=?, mod=?, factor=? where id=? and odid=0", d);
+        addToDeckCounts(ids);
     }
 
 
@@ -2507,6 +2767,7 @@ public class Sched {
 
 
     public void sortCards(long[] cids, int start, int step, boolean shuffle, boolean shift) {
+        _commitJournal();
         String scids = Utils.ids2str(cids);
         long now = Utils.intNow();
         ArrayList<Long> nids = mCol.getDb().queryColumn(Long.class,
@@ -2603,7 +2864,7 @@ public class Sched {
 
 
     // Needed for tests
-    public LinkedList<long[]> getNewQueue() {
+    public CardQueue getNewQueue() {
         return mNewQueue;
     }
 
@@ -2628,11 +2889,4 @@ public class Sched {
         }
     }
 
-    private class DueComparator implements Comparator<long[]> {
-        @Override
-        public int compare(long[] lhs, long[] rhs) {
-            return new Long(lhs[0]).compareTo(rhs[0]);
-        }
-    }
-
 }
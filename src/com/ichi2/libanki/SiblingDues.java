@@ -0,0 +1,164 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+/**
+ * Due days of review cards, grouped by note id, so that the scheduler can space siblings without querying the cards
+ * table on every answer. Notes are kept in an open addressing hash table keyed by the primitive nid; the siblings of a
+ * note are stored as interleaved [cid, due, cid, due, ...] pairs.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class SiblingDues {
+
+    private long[] mNids;
+    private long[][] mCards;
+    private int[] mLengths;
+    private int mSize;
+
+
+    public SiblingDues() {
+        this(64);
+    }
+
+
+    public SiblingDues(int capacity) {
+        int n = 1;
+        while (n < capacity * 2) {
+            n <<= 1;
+        }
+        mNids = new long[n];
+        mCards = new long[n][];
+        mLengths = new int[n];
+        mSize = 0;
+    }
+
+
+    public void clear() {
+        for (int i = 0; i < mNids.length; i++) {
+            mNids[i] = 0;
+            mCards[i] = null;
+            mLengths[i] = 0;
+        }
+        mSize = 0;
+    }
+
+
+    /** Whether the siblings of NID have been loaded. */
+    public boolean has(long nid) {
+        return mNids[_slot(nid)] == nid;
+    }
+
+
+    /** Register NID as loaded, even if it has no review cards. */
+    public void addNote(long nid) {
+        int slot = _slot(nid);
+        if (mNids[slot] != nid) {
+            mNids[slot] = nid;
+            mCards[slot] = new long[4];
+            mLengths[slot] = 0;
+            mSize++;
+            if (mSize * 2 > mNids.length) {
+                _grow();
+            }
+        }
+    }
+
+
+    /** Set the due day of review card CID of note NID, adding it if necessary. */
+    public void put(long nid, long cid, long due) {
+        addNote(nid);
+        int slot = _slot(nid);
+        long[] cards = mCards[slot];
+        int len = mLengths[slot];
+        for (int i = 0; i < len; i += 2) {
+            if (cards[i] == cid) {
+                cards[i + 1] = due;
+                return;
+            }
+        }
+        if (len == cards.length) {
+            long[] grown = new long[len * 2];
+            System.arraycopy(cards, 0, grown, 0, len);
+            cards = grown;
+            mCards[slot] = cards;
+        }
+        cards[len] = cid;
+        cards[len + 1] = due;
+        mLengths[slot] = len + 2;
+    }
+
+
+    /** Forget card CID of note NID, e.g. because it isn't a review card any more. */
+    public void remove(long nid, long cid) {
+        int slot = _slot(nid);
+        if (mNids[slot] != nid) {
+            return;
+        }
+        long[] cards = mCards[slot];
+        int len = mLengths[slot];
+        for (int i = 0; i < len; i += 2) {
+            if (cards[i] == cid) {
+                cards[i] = cards[len - 2];
+                cards[i + 1] = cards[len - 1];
+                mLengths[slot] = len - 2;
+                return;
+            }
+        }
+    }
+
+
+    /** Whether a review sibling of card CID in note NID is due on DUE. The note must have been loaded. */
+    public boolean contains(long nid, long cid, long due) {
+        int slot = _slot(nid);
+        long[] cards = mCards[slot];
+        int len = mLengths[slot];
+        for (int i = 0; i < len; i += 2) {
+            if (cards[i + 1] == due && cards[i] != cid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** The slot holding NID, or the empty slot where it would be inserted. */
+    private int _slot(long nid) {
+        int mask = mNids.length - 1;
+        int slot = (int) (nid ^ (nid >>> 32)) * 0x9E3779B9 & mask;
+        while (mNids[slot] != 0 && mNids[slot] != nid) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+
+    private void _grow() {
+        long[] nids = mNids;
+        long[][] cards = mCards;
+        int[] lengths = mLengths;
+        mNids = new long[nids.length * 2];
+        mCards = new long[mNids.length][];
+        mLengths = new int[mNids.length];
+        for (int i = 0; i < nids.length; i++) {
+            if (nids[i] != 0) {
+                int slot = _slot(nids[i]);
+                mNids[slot] = nids[i];
+                mCards[slot] = cards[i];
+                mLengths[slot] = lengths[i];
+            }
+        }
+    }
+}
@@ -66,9 +66,20 @@ public class Sound {
 
 
     public static String parseSounds(String soundDir, String content, boolean ttsEnabled, int qa) {
+        StringBuilder stringBuilder = new StringBuilder(content.length());
+        parseSounds(soundDir, content, ttsEnabled, qa, stringBuilder);
+        return stringBuilder.toString();
+    }
+
+
+    /**
+     * Same as {@link #parseSounds(String, String, boolean, int)}, but appends the result to OUT in one pass over
+     * CONTENT instead of cutting a new remainder string at every sound marker.
+     */
+    public static void parseSounds(String soundDir, CharSequence content, boolean ttsEnabled, int qa,
+            StringBuilder out) {
         boolean soundAvailable = false;
-        StringBuilder stringBuilder = new StringBuilder();
-        String contentLeft = content;
+        int last = 0;
 
         Log.i(AnkiDroidApp.TAG, "parseSounds");
 
@@ -89,32 +100,25 @@ public class Sound {
 
             sSoundPaths.get(qa).add(soundPath);
 
-            // Construct the new content, appending the substring from the beginning of the content left until the
-            // beginning of the sound marker
-            // and then appending the html code to add the play button
-            String soundMarker = matcher.group();
-            int markerStart = contentLeft.indexOf(soundMarker);
-            stringBuilder.append(contentLeft.substring(0, markerStart));
-            stringBuilder
-                    .append("<a onclick=\"window.interface.playSound(this.title);\" title=\""
-                            + soundPath
-                            + "\"><span style=\"padding:5px;display:inline-block;vertical-align:middle\"><img src=\"file:///android_asset/media_playback_start2.png\" /></span></a>");
-            contentLeft = contentLeft.substring(markerStart + soundMarker.length());
-            Log.i(AnkiDroidApp.TAG, "Content left = " + contentLeft);
+            // Append the content from the end of the last sound marker until the beginning of this one
+            // and then append the html code to add the play button
+            out.append(content, last, matcher.start());
+            out.append("<a onclick=\"window.interface.playSound(this.title);\" title=\"")
+                    .append(soundPath)
+                    .append("\"><span style=\"padding:5px;display:inline-block;vertical-align:middle\"><img src=\"file:///android_asset/media_playback_start2.png\" /></span></a>");
+            last = matcher.end();
         }
         if (!soundAvailable && ttsEnabled && !ReadText.getLanguage(qa).equals(ReadText.NO_TTS)) {
-            stringBuilder.append(content.substring(0, content.length() - 9));
-            stringBuilder
-                    .append("<a onclick=\"window.interface.playSound(this.title);\" title=\"tts"
-                            + Integer.toString(qa)
-                            + Utils.stripHTML(content)
-                            + "\"><span style=\"padding:5px;display:inline-block;vertical-align:middle\"><img src=\"file:///android_asset/media_playback_start2.png\" /></span></a>");
-            contentLeft = "</p>";
+            out.append(content, 0, content.length() - 9);
+            out.append("<a onclick=\"window.interface.playSound(this.title);\" title=\"tts")
+                    .append(Integer.toString(qa))
+                    .append(Utils.stripHTML(content.toString()))
+                    .append("\"><span style=\"padding:5px;display:inline-block;vertical-align:middle\"><img src=\"file:///android_asset/media_playback_start2.png\" /></span></a>");
+            out.append("</p>");
+            return;
         }
 
-        stringBuilder.append(contentLeft);
-
-        return stringBuilder.toString();
+        out.append(content, last, content.length());
     }
 
 
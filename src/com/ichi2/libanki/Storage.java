@@ -42,6 +42,12 @@ public class Storage {
 
 
     public static Collection Collection(String path, boolean server) {
+        return Collection(path, server, false);
+    }
+
+
+    /** LIBANKI: not in libanki; TEXTINDEX is passed on to the Collection */
+    public static Collection Collection(String path, boolean server, boolean textIndex) {
         assert path.endsWith(".anki2");
         File dbFile = new File(path);
         boolean create = !dbFile.exists();
@@ -61,7 +67,7 @@ public class Storage {
         // LIBANKI: sync, journal_mode --> in AnkiDroid done in AnkiDb
 
         // add db to col and do any remaining upgrades
-        Collection col = new Collection(db, path, server);
+        Collection col = new Collection(db, path, server, textIndex);
         if (ver < Collection.SCHEMA_VERSION) {
             _upgrade(col, ver);
         } else if (create) {
@@ -129,7 +129,7 @@ public class Tags {
         // when called without an argument, the old list is cleared first.
         String lim;
         if (nids != null) {
-            lim = " WHERE id IN " + Utils.ids2str(nids);
+            lim = " WHERE id IN " + mCol.getDb().idSet("tag_nids", nids);
         } else {
             lim = "";
             mTags.clear();
@@ -212,7 +212,7 @@ public class Tags {
                     .getDatabase()
                     .rawQuery(
                             String.format(Locale.US, "select id, tags from notes where id in %s and (%s)",
-                                    Utils.ids2str(ids), lim), null);
+                                    mCol.getDb().idSet("tag_nids", ids), lim), null);
             if (add) {
                 while (cur.moveToNext()) {
                     nids.add(cur.getLong(0));
@@ -0,0 +1,257 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+import com.ichi2.anki.AnkiDb;
+import com.ichi2.anki.AnkiDroidApp;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Optional full-text index over the fields of all notes, so that Finder can narrow a text search down to a few notes
+ * before scanning them with LIKE.
+ * <p>
+ * The index is an FTS3 table in a file next to the collection, attached to its database as "fts", so the collection
+ * file itself stays as desktop Anki expects it. It is kept up to date by the code that writes note fields. Writes it
+ * misses, e.g. by desktop Anki or a full sync, are caught up on first use in every session by comparing the mod of
+ * each note with the one it was indexed at.
+ * <p>
+ * Finder matches a term anywhere in the raw fields or the sort field, while fts only matches at the start of a
+ * word. So every word of a field, both raw and html-stripped, is indexed with all its suffixes of up to
+ * {@link #MAX_TERM} characters: a term of letters and digits which LIKE finds anywhere in a note is then the prefix
+ * of one of its indexed words. The notes the index returns are a superset of the ones LIKE matches, and Finder still
+ * applies the LIKE to them, so results are the same with and without the index. Other terms are left to LIKE alone.
+ * <p>
+ * LIBANKI: not in libanki
+ */
+public class TextIndex {
+
+    /** longest indexed suffix, and so longest term the index can narrow down */
+    private static final int MAX_TERM = 16;
+    /** search terms the index can narrow down, optionally ending with * like LIKE's trailing % */
+    private static final Pattern sTermPattern = Pattern.compile("[A-Za-z0-9]{1," + MAX_TERM + "}\\*?");
+    /** layout of the index file, kept in its user_version; an index of an older layout is rebuilt */
+    private static final int INDEX_VERSION = 2;
+
+    private Collection mCol;
+    private String mPath;
+    private boolean mEnabled = false;
+    /** whether the index has been caught up with the notes in this session */
+    private boolean mCaughtUp = false;
+
+
+    /** The index of the collection at PATH, used if ENABLED and removed otherwise. */
+    public TextIndex(Collection col, String path, boolean enabled) {
+        mCol = col;
+        mPath = path + ".fts";
+        if (enabled) {
+            _attach();
+        } else {
+            // an index which is not maintained would go stale
+            new File(mPath).delete();
+        }
+    }
+
+
+    private void _attach() {
+        AnkiDb db = mCol.getDb();
+        try {
+            if (!_isAttached(db)) {
+                db.execute("ATTACH DATABASE ? AS fts", new Object[] { mPath });
+            }
+            if (db.queryScalar("PRAGMA fts.user_version") != INDEX_VERSION) {
+                // built for word prefixes only; _catchUp() indexes everything again
+                db.execute("DROP TABLE IF EXISTS fts.ntext");
+                db.execute("DROP TABLE IF EXISTS fts.nmod");
+                db.execute("PRAGMA fts.user_version = " + INDEX_VERSION);
+            }
+            db.execute("CREATE VIRTUAL TABLE IF NOT EXISTS fts.ntext USING fts3(txt)");
+            db.execute("CREATE TABLE IF NOT EXISTS fts.nmod (id INTEGER PRIMARY KEY, mod INTEGER NOT NULL)");
+            mEnabled = true;
+        } catch (SQLException e) {
+            // no fts support in this sqlite build; searches use LIKE
+            Log.e(AnkiDroidApp.TAG, "TextIndex - could not open " + mPath + ": " + e);
+        }
+    }
+
+
+    /** The database connection is shared by all collections opened from the same file. */
+    private boolean _isAttached(AnkiDb db) {
+        Cursor cur = null;
+        try {
+            cur = db.getDatabase().rawQuery("PRAGMA database_list", null);
+            while (cur.moveToNext()) {
+                if (cur.getString(1).equals("fts")) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+        }
+    }
+
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+
+    /**
+     * Searching ****************************************************************************************************
+     */
+
+    /**
+     * A predicate on cards "c" which holds for at least the notes containing the text search term VAL, adding its
+     * value to ARGS, or null if the index can't narrow VAL down. The caller still has to match VAL itself.
+     */
+    public String findText(String val, List<String> args) {
+        if (!mEnabled || !sTermPattern.matcher(val).matches()) {
+            return null;
+        }
+        if (!mCaughtUp) {
+            _catchUp();
+        }
+        // lower case, so that e.g. OR isn't taken as an operator
+        val = val.toLowerCase(Locale.US);
+        args.add(val.endsWith("*") ? val : val + "*");
+        return "c.nid IN (SELECT docid FROM fts.ntext WHERE txt MATCH ?)";
+    }
+
+
+    /** Index all notes which were added or modified since they were last indexed, and drop removed ones. */
+    private void _catchUp() {
+        AnkiDb db = mCol.getDb();
+        long start = System.currentTimeMillis();
+        int count = 0;
+        Cursor cur = null;
+        db.getDatabase().beginTransaction();
+        try {
+            db.execute("DELETE FROM fts.ntext WHERE docid NOT IN (SELECT id FROM notes)");
+            db.execute("DELETE FROM fts.nmod WHERE id NOT IN (SELECT id FROM notes)");
+            cur = db.getDatabase().rawQuery(
+                    "SELECT n.id, n.mod, n.flds FROM notes n LEFT JOIN fts.nmod m ON m.id = n.id "
+                            + "WHERE m.mod IS NOT n.mod", null);
+            while (cur.moveToNext()) {
+                _update(db, cur.getLong(0), cur.getLong(1), cur.getString(2));
+                count++;
+            }
+            db.getDatabase().setTransactionSuccessful();
+        } finally {
+            if (cur != null && !cur.isClosed()) {
+                cur.close();
+            }
+            db.getDatabase().endTransaction();
+        }
+        mCaughtUp = true;
+        Log.i(AnkiDroidApp.TAG, "TextIndex - indexed " + count + " notes in " + (System.currentTimeMillis() - start)
+                + " ms");
+    }
+
+
+    /**
+     * Updating *****************************************************************************************************
+     */
+
+    /** Index note NID with the joined fields FLDS, as of its modification time MOD. */
+    public void update(long nid, long mod, String flds) {
+        if (mEnabled) {
+            _update(mCol.getDb(), nid, mod, flds);
+        }
+    }
+
+
+    /** Index the notes of ROWS, given as [flds, mod, usn, id] like for "update notes set flds=?,mod=?,usn=? ...". */
+    public void update(List<Object[]> rows) {
+        if (mEnabled) {
+            AnkiDb db = mCol.getDb();
+            for (Object[] r : rows) {
+                _update(db, ((Number) r[3]).longValue(), ((Number) r[1]).longValue(), (String) r[0]);
+            }
+        }
+    }
+
+
+    private void _update(AnkiDb db, long nid, long mod, String flds) {
+        String txt = _suffixes(flds);
+        db.executeStatement("DELETE FROM fts.ntext WHERE docid = ?", new Object[] { nid });
+        db.executeStatement("INSERT INTO fts.ntext (docid, txt) VALUES (?, ?)", new Object[] { nid, txt });
+        db.executeStatement("INSERT OR REPLACE INTO fts.nmod VALUES (?, ?)", new Object[] { nid, mod });
+    }
+
+
+    /**
+     * The words of the fields FLDS, raw and html-stripped like the sort field, with all their suffixes, as the text to
+     * index. Words are split like the fts3 simple tokenizer does: at every ascii character which isn't a letter or
+     * digit.
+     */
+    private static String _suffixes(String flds) {
+        HashSet<String> words = new HashSet<String>();
+        for (String field : Utils.splitFields(flds)) {
+            _addSuffixes(field, words);
+            _addSuffixes(Utils.stripHTML(field), words);
+        }
+        StringBuilder txt = new StringBuilder();
+        for (String word : words) {
+            txt.append(word).append(' ');
+        }
+        return txt.toString();
+    }
+
+
+    private static void _addSuffixes(String text, HashSet<String> words) {
+        int len = text.length();
+        int end = 0;
+        for (int i = 0; i < len; i++) {
+            if (!_isWordChar(text.charAt(i))) {
+                continue;
+            }
+            if (end <= i) {
+                end = i + 1;
+                while (end < len && _isWordChar(text.charAt(end))) {
+                    end++;
+                }
+            }
+            // a search term is ascii, so it can only start at an ascii letter or digit
+            if (text.charAt(i) < 128) {
+                words.add(text.substring(i, Math.min(i + MAX_TERM, end)));
+            }
+        }
+    }
+
+
+    private static boolean _isWordChar(char c) {
+        return c >= 128 || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+
+    /** Drop the notes STRIDS, as returned by Utils.ids2str() or AnkiDb.idSet(). */
+    public void remove(String strids) {
+        if (mEnabled) {
+            mCol.getDb().execute("DELETE FROM fts.ntext WHERE docid IN " + strids);
+            mCol.getDb().execute("DELETE FROM fts.nmod WHERE id IN " + strids);
+        }
+    }
+}
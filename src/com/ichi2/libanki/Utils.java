@@ -459,7 +459,7 @@ public class Utils {
         // be careful not to create multiple objects without flushing them, or they
         // may share an ID.
         long t = intNow(1000);
-        while (db.queryScalar("SELECT id FROM " + table + " WHERE id = " + t, false) != 0) {
+        while (db.queryLongStatement("SELECT id FROM " + table + " WHERE id = ?", new Object[] { t }) != 0) {
             t += 1;
         }
         return t;
@@ -549,20 +549,41 @@ public class Utils {
     }
 
 
+    /**
+     * Split a joined field string at the 0x1f separators. Empty fields, including leading and trailing ones, are
+     * kept, so the result has one element more than FIELDS has separators. A field consisting of a single 0x1e, the
+     * placeholder the old regex based version used for empty fields, is returned as empty as well.
+     */
     public static String[] splitFields(String fields) {
-        // do not drop empty fields
-        fields = fields.replaceAll("\\x1f\\x1f", "\u001f\u001e\u001f");
-        fields = fields.replaceAll("\\x1f$", "\u001f\u001e");
-        String[] split = fields.split("\\x1f");
-        for (int i = 0; i < split.length; i++) {
-            if (split[i].matches("\\x1e")) {
-                split[i] = "";
+        int len = fields.length();
+        int n = 1;
+        for (int i = 0; i < len; i++) {
+            if (fields.charAt(i) == '\u001f') {
+                n++;
+            }
+        }
+        String[] split = new String[n];
+        int start = 0;
+        int f = 0;
+        for (int i = 0; i < len; i++) {
+            if (fields.charAt(i) == '\u001f') {
+                split[f++] = _field(fields, start, i);
+                start = i + 1;
             }
         }
+        split[f] = _field(fields, start, len);
         return split;
     }
 
 
+    private static String _field(String fields, int start, int end) {
+        if (end - start == 1 && fields.charAt(start) == '\u001e') {
+            return "";
+        }
+        return fields.substring(start, end);
+    }
+
+
     /**
      * Checksums ***********************************************************************************************
      */
@@ -616,7 +637,7 @@ public class Utils {
      *         contents.
      */
     public static String fileChecksum(String file) {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[CHUNK_SIZE];
         byte[] digest = null;
         try {
             InputStream fis = new FileInputStream(file);
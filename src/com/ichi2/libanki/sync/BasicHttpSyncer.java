@@ -51,17 +51,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.security.KeyStore;
@@ -113,7 +115,46 @@ public class BasicHttpSyncer implements HttpSyncer {
     }
 
 
+    /**
+     * Write the payload of a later req(String, File) with WRITER, compressed, into a spool file, see _spool(). This
+     * part needs no connection, so it can run while another request is being sent.
+     */
+    public File spool(PayloadWriter writer) throws IOException {
+        return _spool(null, writer, true);
+    }
+
+
+    /** Post the compressed payload spooled by spool(PayloadWriter). The caller deletes the file. */
+    public HttpResponse req(String method, File payload) {
+        return _send(method, payload, 6, true, null);
+    }
+
+
     public HttpResponse req(String method, InputStream fobj, int comp, boolean hkey, JSONObject registerData) {
+        return _req(method, fobj, null, comp, hkey, registerData);
+    }
+
+
+    private HttpResponse _req(String method, InputStream fobj, PayloadWriter writer, int comp, boolean hkey,
+            JSONObject registerData) {
+        File spool = null;
+        try {
+            if (fobj != null || writer != null) {
+                spool = _spool(fobj, writer, comp != 0);
+            }
+            return _send(method, spool, comp, hkey, registerData);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+
+    /** Post the payload in SPOOL, if any, as written by _spool(). */
+    private HttpResponse _send(String method, File spool, int comp, boolean hkey, JSONObject registerData) {
         try {
             String bdry = "--" + BOUNDARY;
             StringWriter buf = new StringWriter();
@@ -124,37 +165,15 @@ public class BasicHttpSyncer implements HttpSyncer {
                 buf.write(bdry + "\r\n");
                 buf.write("Content-Disposition: form-data; name=\"k\"\r\n\r\n" + mHKey + "\r\n");
             }
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            // payload as raw data or json
-            if (fobj != null) {
-                // header
+            byte[] tail = new byte[0];
+            if (spool != null) {
+                // header of the payload, which is sent from the spool file
                 buf.write(bdry + "\r\n");
                 buf.write("Content-Disposition: form-data; name=\"data\"; filename=\"data\"\r\nContent-Type: application/octet-stream\r\n\r\n");
-                buf.close();
-                bos.write(buf.toString().getBytes("UTF-8"));
-                // write file into buffer, optionally compressing
-                int len;
-                BufferedInputStream bfobj = new BufferedInputStream(fobj);
-                byte[] chunk = new byte[65536];
-                if (comp != 0) {
-                    GZIPOutputStream tgt = new GZIPOutputStream(new BufferedOutputStream(bos));
-                    while ((len = bfobj.read(chunk)) > 0) {
-                        tgt.write(chunk, 0, len);
-                    }
-                    tgt.close();
-                } else {
-                    BufferedOutputStream tgt = new BufferedOutputStream(bos);
-                    while ((len = bfobj.read(chunk)) > 0) {
-                        tgt.write(chunk, 0, len);
-                    }
-                    tgt.close();
-                }
-                bos.write(("\r\n" + bdry + "--\r\n").getBytes("UTF-8"));
-            } else {
-                buf.close();
-                bos.write(buf.toString().getBytes("UTF-8"));
+                tail = ("\r\n" + bdry + "--\r\n").getBytes("UTF-8");
             }
-            bos.close();
+            buf.close();
+            byte[] head = buf.toString().getBytes("UTF-8");
             // connection headers
             String url = Collection.SYNC_URL;
             if (method.equals("register")) {
@@ -166,52 +185,103 @@ public class BasicHttpSyncer implements HttpSyncer {
                 url = url + "sync/" + method;
             }
             HttpPost httpPost = new HttpPost(url);
-            HttpEntity entity = new ProgressByteEntity(bos.toByteArray());
+            HttpEntity entity = new ProgressStreamEntity(head, spool, tail);
 
             // body
             httpPost.setEntity(entity);
             httpPost.setHeader("Content-type", "multipart/form-data; boundary=" + BOUNDARY);
+            return _execute(httpPost);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            return null;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            SharedPreferences preferences = PrefSettings.getSharedPrefs(AnkiDroidApp.getInstance()
-                    .getApplicationContext());
 
-            SchemeRegistry schemeRegistry = new SchemeRegistry();
-            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-            if (preferences.getBoolean("sslAcceptAll", true)) {
-                Log.e(AnkiDroidApp.TAG, "SSL certificate check is disabled");
-                schemeRegistry.register(new Scheme("https", new EasySSLSocketFactory(), 443));
+    /**
+     * Write the payload, read from FOBJ or written by WRITER, to a temporary file next to the collection, gzipped if
+     * COMPRESS, and return it. This way the body can be sent with its length known up front, as some servers and
+     * proxies refuse chunked request bodies, while only a buffer of it is held in memory.
+     */
+    private File _spool(InputStream fobj, PayloadWriter writer, boolean compress) throws IOException {
+        File dir = new File(AnkiDroidApp.getCollectionPath()).getParentFile();
+        File spool = File.createTempFile("sync", ".tmp", dir);
+        OutputStream out = null;
+        boolean done = false;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(spool), Utils.CHUNK_SIZE);
+            if (compress) {
+                out = new GZIPOutputStream(out, Utils.CHUNK_SIZE);
+            }
+            if (writer != null) {
+                writer.write(out);
             } else {
-                schemeRegistry.register(new Scheme("https",
-                        newSslSocketFactory(SSLSocketFactory.STRICT_HOSTNAME_VERIFIER), 443));
+                byte[] chunk = new byte[Utils.CHUNK_SIZE];
+                int len;
+                while ((len = fobj.read(chunk)) != -1) {
+                    out.write(chunk, 0, len);
+                }
             }
+            out.close();
+            done = true;
+            return spool;
+        } finally {
+            if (fobj != null) {
+                fobj.close();
+            }
+            if (!done) {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // already failing
+                    }
+                }
+                spool.delete();
+            }
+        }
+    }
 
-            HttpParams params = new BasicHttpParams();
-            params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, 30);
-            params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(30));
-            params.setParameter(HttpProtocolParams.USE_EXPECT_CONTINUE, false);
-            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
 
-            ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
-            try {
-                DefaultHttpClient httpClient = new DefaultHttpClient(cm, params);
-                return httpClient.execute(httpPost);
-            } catch (SSLException e) {
-                // SSL cert error: might be related to a bug. as a workaround we accept all certs, if necessary
-                // prevent loop
-                if (!preferences.getBoolean("sslAcceptAll", false)) {
-                    Log.e(AnkiDroidApp.TAG, "workaround for android < 3.0: disabling ssl certificate check");
-                    preferences.edit().putBoolean("sslAcceptAll", true).commit();
-                    return req(method, fobj, comp, hkey, registerData);
-                } else {
-                    return null;
-                }
+    /** Send HTTPPOST, whose entity must be repeatable. */
+    private HttpResponse _execute(HttpPost httpPost) throws IOException {
+        SharedPreferences preferences = PrefSettings.getSharedPrefs(AnkiDroidApp.getInstance()
+                .getApplicationContext());
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        if (preferences.getBoolean("sslAcceptAll", true)) {
+            Log.e(AnkiDroidApp.TAG, "SSL certificate check is disabled");
+            schemeRegistry.register(new Scheme("https", new EasySSLSocketFactory(), 443));
+        } else {
+            schemeRegistry.register(new Scheme("https",
+                    newSslSocketFactory(SSLSocketFactory.STRICT_HOSTNAME_VERIFIER), 443));
+        }
+
+        HttpParams params = new BasicHttpParams();
+        params.setParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, 30);
+        params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(30));
+        params.setParameter(HttpProtocolParams.USE_EXPECT_CONTINUE, false);
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
+        try {
+            DefaultHttpClient httpClient = new DefaultHttpClient(cm, params);
+            return httpClient.execute(httpPost);
+        } catch (SSLException e) {
+            // SSL cert error: might be related to a bug. as a workaround we accept all certs, if necessary
+            // prevent loop
+            if (!preferences.getBoolean("sslAcceptAll", false)) {
+                Log.e(AnkiDroidApp.TAG, "workaround for android < 3.0: disabling ssl certificate check");
+                preferences.edit().putBoolean("sslAcceptAll", true).commit();
+                // the entity is repeatable
+                return _execute(httpPost);
+            } else {
+                return null;
             }
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            return null;
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -296,7 +366,7 @@ public class BasicHttpSyncer implements HttpSyncer {
     }
 
 
-    public JSONObject chunk() {
+    public JSONObject chunk(Syncer syncer) {
         return null;
     }
 
@@ -326,54 +396,79 @@ public class BasicHttpSyncer implements HttpSyncer {
     }
 
 
-    public void applyChunk(JSONObject sech) {
+    public File prepareChunk(Syncer syncer) throws IOException {
+        return null;
+    }
+
+
+    public JSONObject applyChunk(File chunk) {
+        return null;
+    }
+
+
+    /** Writes a request payload straight into its spool file, see spool(PayloadWriter). */
+    public interface PayloadWriter {
+        /** Write the payload into OUT, then flush it; OUT must not be closed. */
+        public void write(OutputStream out) throws IOException;
     }
 
-    public class ProgressByteEntity extends AbstractHttpEntity {
+    /**
+     * The multipart body of a request: the form fields, then the payload from its spool file, see _spool(). The length
+     * is known up front, so the body is sent with a Content-Length, and the entity can be sent again.
+     */
+    public class ProgressStreamEntity extends AbstractHttpEntity {
 
-        private InputStream mInputStream;
-        private long mLength;
+        private byte[] mHead;
+        private File mPayload;
+        private byte[] mTail;
 
 
-        public ProgressByteEntity(byte[] byteArray) {
+        public ProgressStreamEntity(byte[] head, File payload, byte[] tail) {
             super();
-            mLength = byteArray.length;
-            mInputStream = new ByteArrayInputStream(byteArray);
+            mHead = head;
+            mPayload = payload;
+            mTail = tail;
         }
 
 
         @Override
         public void writeTo(OutputStream outstream) throws IOException {
+            OutputStream out = new ProgressOutputStream(outstream);
+            InputStream in = getContent();
             try {
-                byte[] tmp = new byte[4096];
+                byte[] chunk = new byte[Utils.CHUNK_SIZE];
                 int len;
-                while ((len = mInputStream.read(tmp)) != -1) {
-                    outstream.write(tmp, 0, len);
-                    bytesSent += len;
-                    publishProgress();
+                while ((len = in.read(chunk)) != -1) {
+                    out.write(chunk, 0, len);
                 }
-                outstream.flush();
+                out.flush();
             } finally {
-                mInputStream.close();
+                in.close();
             }
         }
 
 
+        /** A new stream of the whole body, as sent by writeTo(). */
         @Override
-        public InputStream getContent() throws IOException, IllegalStateException {
-            return mInputStream;
+        public InputStream getContent() throws IOException {
+            InputStream body = new ByteArrayInputStream(mHead);
+            if (mPayload != null) {
+                body = new SequenceInputStream(body, new FileInputStream(mPayload));
+                body = new SequenceInputStream(body, new ByteArrayInputStream(mTail));
+            }
+            return body;
         }
 
 
         @Override
         public long getContentLength() {
-            return mLength;
+            return mHead.length + (mPayload != null ? mPayload.length() + mTail.length : 0);
         }
 
 
         @Override
         public boolean isRepeatable() {
-            return false;
+            return true;
         }
 
 
@@ -384,6 +479,63 @@ public class BasicHttpSyncer implements HttpSyncer {
     }
 
 
+    /** Counts the bytes read into bytesReceived and reports the progress. */
+    protected class ProgressInputStream extends FilterInputStream {
+
+        public ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                bytesReceived++;
+                publishProgress();
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                bytesReceived += n;
+                publishProgress();
+            }
+            return n;
+        }
+    }
+
+
+    /** Counts the bytes written into bytesSent and reports the progress. */
+    private class ProgressOutputStream extends FilterOutputStream {
+
+        public ProgressOutputStream(OutputStream out) {
+            super(out);
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesSent++;
+            publishProgress();
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write byte by byte
+            out.write(b, off, len);
+            bytesSent += len;
+            publishProgress();
+        }
+    }
+
+
     public static ByteArrayInputStream getInputStream(String string) {
         try {
             return new ByteArrayInputStream(string.getBytes("UTF-8"));
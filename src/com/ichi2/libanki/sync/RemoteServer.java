@@ -16,10 +16,17 @@
 
 package com.ichi2.libanki.sync;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
 import org.apache.http.HttpResponse;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -88,16 +95,71 @@ public class RemoteServer extends BasicHttpSyncer {
     }
 
 
+    /**
+     * Download the next chunk and merge it with SYNCER while it is read, without parsing the whole response first.
+     * Returns {"done": bool} like the chunk itself, an error object, or null if the server couldn't be reached.
+     */
     @Override
-    public JSONObject chunk() {
-        JSONObject co = new JSONObject();
-        return _run("chunk", co);
+    public JSONObject chunk(Syncer syncer) {
+        HttpResponse ret = super.req("chunk", super.getInputStream("{}"));
+        if (ret == null) {
+            return null;
+        }
+        JsonReader reader = null;
+        try {
+            if (ret.getStatusLine().getStatusCode() == 200) {
+                reader = new JsonReader(new BufferedReader(new InputStreamReader(new ProgressInputStream(ret
+                        .getEntity().getContent()), "UTF-8")));
+                if (reader.peek() != JsonToken.NULL) {
+                    JSONObject o = new JSONObject();
+                    o.put("done", syncer.applyChunk(reader));
+                    return o;
+                }
+                return _error("chunk", ret, true);
+            }
+            return _error("chunk", ret, false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+            }
+        }
     }
 
 
+    /**
+     * Write the next chunk of SYNCER, as it is read from the database, into a spool file for applyChunk(File). Must
+     * run on the thread of the sync transaction.
+     */
     @Override
-    public void applyChunk(JSONObject sech) {
-        _run("applyChunk", sech);
+    public File prepareChunk(final Syncer syncer) throws IOException {
+        return super.spool(new PayloadWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write("{\"chunk\": ".getBytes("UTF-8"));
+                syncer.chunk(out);
+                out.write('}');
+                out.flush();
+            }
+        });
+    }
+
+
+    /** Send a chunk written by prepareChunk() and delete it. Touches no database, so any thread may send it. */
+    @Override
+    public JSONObject applyChunk(File chunk) {
+        try {
+            return _result("applyChunk", super.req("applyChunk", chunk));
+        } finally {
+            chunk.delete();
+        }
     }
 
 
@@ -143,7 +205,12 @@ public class RemoteServer extends BasicHttpSyncer {
 
 
     private JSONObject _run(String cmd, JSONObject data) {
-        HttpResponse ret = super.req(cmd, super.getInputStream(data.toString()));
+        return _result(cmd, super.req(cmd, super.getInputStream(data.toString())));
+    }
+
+
+    /** The JSON object of the response RET to CMD, an error object if there is none, or null without a response. */
+    private JSONObject _result(String cmd, HttpResponse ret) {
         if (ret == null) {
             return null;
         }
@@ -156,10 +223,7 @@ public class RemoteServer extends BasicHttpSyncer {
                     return new JSONObject(s);
                 }
             }
-            JSONObject o = new JSONObject();
-            o.put("errorType", resultType);
-            o.put("errorReason", s.equals("null") ? "null result (" + cmd + ")" : ret.getStatusLine().getReasonPhrase());
-            return o;
+            return _error(cmd, ret, s.equals("null"));
         } catch (IllegalStateException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -168,4 +232,12 @@ public class RemoteServer extends BasicHttpSyncer {
             throw new RuntimeException(e);
         }
     }
+
+
+    private JSONObject _error(String cmd, HttpResponse ret, boolean nullResult) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("errorType", ret.getStatusLine().getStatusCode());
+        o.put("errorReason", nullResult ? "null result (" + cmd + ")" : ret.getStatusLine().getReasonPhrase());
+        return o;
+    }
 }
@@ -17,29 +17,39 @@
 package com.ichi2.libanki.sync;
 
 import android.database.Cursor;
-import android.database.SQLException;
 import android.util.Log;
 
+import com.ichi2.anki.AnkiDb;
 import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki2.R;
 import com.ichi2.async.Connection;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Sched;
 import com.ichi2.libanki.Utils;
-import com.ichi2.utils.ConvUtils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.apache.http.HttpResponse;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Syncer {
     // Mapping of column type names to Cursor types for API < 11
@@ -49,6 +59,13 @@ public class Syncer {
     public static final int TYPE_STRING = 3;
     public static final int TYPE_BLOB = 4;
 
+    /** uncompressed bytes of the first chunk sent, before the link speed is known */
+    private static final long CHUNK_BYTES = 256 * 1024;
+    /** the bytes a chunk should have, within these bounds, to take about CHUNK_TARGET_MS to send and apply */
+    private static final long CHUNK_MIN_BYTES = 64 * 1024;
+    private static final long CHUNK_MAX_BYTES = 1024 * 1024;
+    private static final long CHUNK_TARGET_MS = 2000;
+
     Collection mCol;
     BasicHttpSyncer mServer;
     long mRMod;
@@ -63,6 +80,13 @@ public class Syncer {
 
     private LinkedList<String> mTablesLeft;
     private Cursor mCursor;
+    /** whether the last chunk written by chunk() was the final one */
+    private boolean mChunkDone;
+    /** rows and uncompressed bytes written into the last chunk */
+    private int mChunkRows;
+    private long mChunkBytes;
+    /** uncompressed bytes per chunk, see adaptChunkLimit() */
+    private long mChunkBudget = CHUNK_BYTES;
 
 
     public Syncer(Collection col, BasicHttpSyncer server) {
@@ -168,8 +192,8 @@ public class Syncer {
                 // step 3: stream large tables from server
                 publishProgress(con, R.string.sync_download_chunk);
                 while (true) {
-                    Log.i(AnkiDroidApp.TAG, "Sync: downloading chunked data");
-                    JSONObject chunk = mServer.chunk();
+                    Log.i(AnkiDroidApp.TAG, "Sync: downloading and applying chunked data");
+                    JSONObject chunk = mServer.chunk(this);
                     if (chunk == null) {
                         Log.i(AnkiDroidApp.TAG, "Sync: error - returning");
                         return null;
@@ -178,24 +202,15 @@ public class Syncer {
                         Log.i(AnkiDroidApp.TAG, "Sync: error - returning");
                         return new Object[] { "error", chunk.get("errorType"), chunk.get("errorReason") };
                     }
-                    Log.i(AnkiDroidApp.TAG, "Sync: applying chunked data");
-                    applyChunk(chunk);
                     if (chunk.getBoolean("done")) {
                         break;
                     }
                 }
                 // step 4: stream to server
                 publishProgress(con, R.string.sync_upload_chunk);
-                while (true) {
-                    Log.i(AnkiDroidApp.TAG, "Sync: collecting chunked data");
-                    JSONObject chunk = chunk();
-                    JSONObject sech = new JSONObject();
-                    sech.put("chunk", chunk);
-                    Log.i(AnkiDroidApp.TAG, "Sync: sending chunked data");
-                    mServer.applyChunk(sech);
-                    if (chunk.getBoolean("done")) {
-                        break;
-                    }
+                if (!sendChunks()) {
+                    Log.i(AnkiDroidApp.TAG, "Sync: error - returning");
+                    return null;
                 }
                 // step 5: sanity check during beta testing
                 JSONArray c = sanityCheck();
@@ -440,75 +455,251 @@ public class Syncer {
     }
 
 
-    public JSONObject chunk() {
-        JSONObject buf = new JSONObject();
-        try {
-            buf.put("done", false);
-            int lim = 2500;
-            List<Integer> colTypes = null;
-            while (!mTablesLeft.isEmpty() && lim > 0) {
-                String curTable = mTablesLeft.getFirst();
-                if (mCursor == null) {
-                    mCursor = cursorForTable(curTable);
-                    colTypes = columnTypesForQuery(curTable);
-                }
-                JSONArray rows = new JSONArray();
-                int count = mCursor.getColumnCount();
-                while (mCursor.moveToNext() && mCursor.getPosition() <= lim) {
-                    JSONArray r = new JSONArray();
-                    for (int i = 0; i < count; i++) {
-                        switch (colTypes.get(i).intValue()) {
-                            case TYPE_STRING:
-                                r.put(mCursor.getString(i));
-                                break;
-                            case TYPE_FLOAT:
-                                r.put(mCursor.getDouble(i));
-                                break;
-                            case TYPE_INTEGER:
-                                r.put(mCursor.getLong(i));
-                                break;
-                        }
-                    }
-                    rows.put(r);
-                }
-                int fetched = rows.length();
-                if (fetched != lim) {
-                    // table is empty
-                    mTablesLeft.removeFirst();
-                    mCursor.close();
-                    mCursor = null;
-                    // if we're the client, mark the objects as having been sent
-                    if (!mCol.getServer()) {
-                        mCol.getDb().execute("UPDATE " + curTable + " SET usn=" + mMaxUsn + " WHERE usn=-1");
+    /**
+     * Write the next chunk into OUT as UTF-8 JSON, {"revlog": [...], "cards": [...], "notes": [...], "done": bool},
+     * then flush it. The rows are written straight from the database cursor, so only one of them is held at a time.
+     * Rows are added until about the byte budget of adaptChunkLimit() has been written; the budget may be overshot by
+     * the writer's buffer and one row. Returns "done".
+     */
+    public boolean chunk(OutputStream out) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        JsonWriter w = new JsonWriter(new OutputStreamWriter(counter, "UTF-8"));
+        boolean done = chunk(w, counter);
+        w.flush();
+        mChunkBytes = counter.mCount;
+        return done;
+    }
+
+
+    private boolean chunk(JsonWriter w, CountingOutputStream counter) throws IOException {
+        w.beginObject();
+        int rows = 0;
+        while (!mTablesLeft.isEmpty() && counter.mCount < mChunkBudget) {
+            String curTable = mTablesLeft.getFirst();
+            if (mCursor == null) {
+                mCursor = cursorForTable(curTable);
+            }
+            List<Integer> colTypes = columnTypesForQuery(curTable);
+            int count = mCursor.getColumnCount();
+            boolean more = true;
+            w.name(curTable);
+            w.beginArray();
+            while (counter.mCount < mChunkBudget && (more = mCursor.moveToNext())) {
+                w.beginArray();
+                for (int i = 0; i < count; i++) {
+                    switch (colTypes.get(i).intValue()) {
+                        case TYPE_STRING:
+                            w.value(mCursor.getString(i));
+                            break;
+                        case TYPE_FLOAT:
+                            w.value(mCursor.getDouble(i));
+                            break;
+                        case TYPE_INTEGER:
+                            w.value(mCursor.getLong(i));
+                            break;
                     }
                 }
-                buf.put(curTable, rows);
-                lim -= fetched;
+                w.endArray();
+                rows++;
             }
-            if (mTablesLeft.isEmpty()) {
-                buf.put("done", true);
+            w.endArray();
+            if (!more) {
+                // table is empty
+                mTablesLeft.removeFirst();
+                mCursor.close();
+                mCursor = null;
+                // if we're the client, mark the objects as having been sent
+                if (!mCol.getServer()) {
+                    mCol.getDb().execute("UPDATE " + curTable + " SET usn=" + mMaxUsn + " WHERE usn=-1");
+                }
             }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
         }
-        return buf;
+        mChunkRows = rows;
+        mChunkDone = mTablesLeft.isEmpty();
+        w.name("done");
+        w.value(mChunkDone);
+        w.endObject();
+        return mChunkDone;
     }
 
 
-    public void applyChunk(JSONObject chunk) {
+    /**
+     * Send the local changes to the server, one chunk after the other. The database can only be read on this thread,
+     * which holds the sync transaction, so the next chunk is written to its spool file here while a single sender
+     * thread has the previous one in flight. There is never more than one chunk waiting besides the one being sent,
+     * and the server gets them in order. Returns false if a chunk could not be written or sent.
+     */
+    private boolean sendChunks() {
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        Future<Long> inFlight = null;
+        long sentBytes = 0;
+        int sentRows = 0;
+        File next = null;
+        boolean done = false;
         try {
-            if (chunk.has("revlog")) {
-                mergeRevlog(chunk.getJSONArray("revlog"));
+            while (true) {
+                if (!done) {
+                    Log.i(AnkiDroidApp.TAG, "Sync: collecting chunked data");
+                    next = mServer.prepareChunk(this);
+                    done = mChunkDone;
+                }
+                if (inFlight != null) {
+                    long elapsed = inFlight.get();
+                    inFlight = null;
+                    if (elapsed < 0) {
+                        return false;
+                    }
+                    adaptChunkLimit(sentBytes, sentRows, elapsed);
+                }
+                if (next == null) {
+                    return true;
+                }
+                final File chunk = next;
+                next = null;
+                sentBytes = mChunkBytes;
+                sentRows = mChunkRows;
+                inFlight = sender.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        Log.i(AnkiDroidApp.TAG, "Sync: sending chunked data");
+                        long start = System.currentTimeMillis();
+                        if (mServer.applyChunk(chunk) == null) {
+                            return -1L;
+                        }
+                        return System.currentTimeMillis() - start;
+                    }
+                });
             }
-            if (chunk.has("cards")) {
-                mergeCards(chunk.getJSONArray("cards"));
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (next != null) {
+                next.delete();
+            }
+            sender.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Size the following chunks from the last one sent: BYTES in ROWS took ELAPSED ms to be sent and applied. The
+     * budget aims at the bytes the link moves in CHUNK_TARGET_MS, so that slow links get small chunks and fast ones
+     * don't pay a round trip per few rows. The chunk written meanwhile still has the old budget.
+     */
+    private void adaptChunkLimit(long bytes, int rows, long elapsed) {
+        if (rows == 0) {
+            return;
+        }
+        long budget = bytes * CHUNK_TARGET_MS / Math.max(elapsed, 1);
+        mChunkBudget = Math.max(CHUNK_MIN_BYTES, Math.min(CHUNK_MAX_BYTES, budget));
+        Log.i(AnkiDroidApp.TAG, "Sync: " + rows + " rows in " + bytes + " bytes took " + elapsed + " ms, next chunks "
+                + mChunkBudget + " bytes");
+    }
+
+
+    /** Counts the bytes written through it, for the byte budget of chunk(). Flushes are left to the caller. */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount = 0;
+
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write byte by byte
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+
+
+    /**
+     * Merge the chunk read from R, as it arrives. Review log rows are inserted directly; cards and notes are staged in
+     * temporary tables and merged with one statement per table. Returns the chunk's "done" value.
+     */
+    public boolean applyChunk(JsonReader r) throws IOException {
+        // merged cards can land in any deck and queue
+        mCol.getSched().invalidateDeckCounts();
+        prepareStaging();
+        boolean done = false;
+        r.beginObject();
+        while (r.hasNext()) {
+            String name = r.nextName();
+            if (name.equals("done")) {
+                done = r.nextBoolean();
+            } else if (name.equals("revlog") || name.equals("cards") || name.equals("notes")) {
+                r.beginArray();
+                while (r.hasNext()) {
+                    Object[] row = readRow(r);
+                    if (name.equals("revlog")) {
+                        mergeRevlog(row);
+                    } else if (name.equals("cards")) {
+                        mCol.getDb().executeStatement(
+                                "INSERT OR REPLACE INTO temp.sync_cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)",
+                                row);
+                    } else {
+                        mCol.getDb().executeStatement(
+                                "INSERT OR REPLACE INTO temp.sync_notes VALUES (?,?,?,?,?,?,?,?,?,?,?)", row);
+                    }
+                }
+                r.endArray();
+                if (name.equals("cards")) {
+                    mergeCards();
+                } else if (name.equals("notes")) {
+                    mergeNotes();
+                }
+            } else {
+                r.skipValue();
             }
-            if (chunk.has("notes")) {
-                mergeNotes(chunk.getJSONArray("notes"));
+        }
+        r.endObject();
+        return done;
+    }
+
+
+    /** Read one row of a chunk; numbers become Long, or Double if they have a fraction or exponent. */
+    private Object[] readRow(JsonReader r) throws IOException {
+        ArrayList<Object> row = new ArrayList<Object>();
+        r.beginArray();
+        while (r.hasNext()) {
+            switch (r.peek()) {
+                case NUMBER:
+                    String n = r.nextString();
+                    if (n.indexOf('.') != -1 || n.indexOf('e') != -1 || n.indexOf('E') != -1) {
+                        row.add(Double.valueOf(n));
+                    } else {
+                        row.add(Long.valueOf(n));
+                    }
+                    break;
+                case STRING:
+                    row.add(r.nextString());
+                    break;
+                case BOOLEAN:
+                    row.add(r.nextBoolean());
+                    break;
+                default:
+                    r.skipValue();
+                    row.add(null);
+                    break;
             }
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
         }
+        r.endArray();
+        return row.toArray();
     }
 
 
@@ -756,70 +947,66 @@ public class Syncer {
      * Cards/notes/revlog ********************************************************************
      */
 
-    private void mergeRevlog(JSONArray logs) {
-        for (int i = 0; i < logs.length(); i++) {
-            try {
-                mCol.getDb().execute("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
-                        ConvUtils.jsonArray2Objects(logs.getJSONArray(i)));
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    private void mergeRevlog(Object[] log) {
+        mCol.getDb().executeStatement("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)", log);
+    }
 
+
+    /**
+     * Create the tables incoming cards and notes are staged in, shaped like the real ones, with the last row of an id
+     * replacing earlier ones. They are emptied after each merge.
+     */
+    private void prepareStaging() {
+        AnkiDb db = mCol.getDb();
+        db.execute("CREATE TEMP TABLE IF NOT EXISTS sync_cards AS SELECT * FROM cards WHERE 0");
+        db.execute("CREATE UNIQUE INDEX IF NOT EXISTS temp.ix_sync_cards ON sync_cards (id)");
+        db.execute("CREATE TEMP TABLE IF NOT EXISTS sync_notes AS SELECT * FROM notes WHERE 0");
+        db.execute("CREATE UNIQUE INDEX IF NOT EXISTS temp.ix_sync_notes ON sync_notes (id)");
     }
 
 
-    private ArrayList<Object[]> newerRows(JSONArray data, String table, int modIdx) {
-        long[] ids = new long[data.length()];
-        try {
-            for (int i = 0; i < data.length(); i++) {
-                ids[i] = data.getJSONArray(i).getLong(0);
-            }
-            HashMap<Long, Long> lmods = new HashMap<Long, Long>();
-            Cursor cur = null;
-            try {
-                cur = mCol
-                        .getDb()
-                        .getDatabase()
-                        .rawQuery(
-                                "SELECT id, mod FROM " + table + " WHERE id IN " + Utils.ids2str(ids) + " AND "
-                                        + usnLim(), null);
-                while (cur.moveToNext()) {
-                    lmods.put(cur.getLong(0), cur.getLong(1));
-                }
-            } finally {
-                if (cur != null && !cur.isClosed()) {
-                    cur.close();
-                }
-            }
-            ArrayList<Object[]> update = new ArrayList<Object[]>();
-            for (int i = 0; i < data.length(); i++) {
-                JSONArray r = data.getJSONArray(i);
-                if (!lmods.containsKey(r.getLong(0)) || lmods.get(r.getLong(0)) < r.getLong(modIdx)) {
-                    update.add(ConvUtils.jsonArray2Objects(r));
-                }
-            }
-            return update;
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * The condition for a local row "l" of a table to win over the staged row "s" with the same id: it was changed
+     * since the last sync, and not before the incoming one.
+     */
+    private String localWins() {
+        return "l.id = s.id AND l." + usnLim() + " AND l.mod >= s.mod";
     }
 
 
-    private void mergeCards(JSONArray cards) {
-        for (Object[] r : newerRows(cards, "cards", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", r);
-        }
+    /** Replace the local cards by the staged ones unless the local ones win. */
+    private void mergeCards() {
+        AnkiDb db = mCol.getDb();
+        db.execute("INSERT OR REPLACE INTO cards SELECT * FROM temp.sync_cards s WHERE NOT EXISTS "
+                + "(SELECT 1 FROM cards l WHERE " + localWins() + ")");
+        db.execute("DELETE FROM temp.sync_cards");
     }
 
 
-    private void mergeNotes(JSONArray notes) {
-        for (Object[] n : newerRows(notes, "notes", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)", n);
-            mCol.updateFieldCache(new long[] { (Long) n[0] });
+    /** Like mergeCards(), then update the field cache and text index of the merged notes. */
+    private void mergeNotes() {
+        AnkiDb db = mCol.getDb();
+        // drop the losers first, so that what's left is what changed
+        db.execute("DELETE FROM temp.sync_notes WHERE id IN (SELECT s.id FROM temp.sync_notes s, notes l WHERE "
+                + localWins() + ")");
+        db.execute("INSERT OR REPLACE INTO notes SELECT * FROM temp.sync_notes");
+        long[] nids = new long[db.queryScalar("SELECT count() FROM temp.sync_notes", false)];
+        Cursor cur = null;
+        try {
+            cur = db.getDatabase().rawQuery("SELECT id, mod, flds FROM temp.sync_notes", null);
+            for (int i = 0; cur.moveToNext(); i++) {
+                nids[i] = cur.getLong(0);
+                mCol.getTextIndex().update(nids[i], cur.getLong(1), cur.getString(2));
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        if (nids.length != 0) {
+            mCol.updateFieldCache(nids);
         }
+        db.execute("DELETE FROM temp.sync_notes");
     }
 
 
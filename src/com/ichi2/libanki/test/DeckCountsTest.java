@@ -0,0 +1,188 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.test;
+
+import android.test.AndroidTestCase;
+
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.DeckCounts;
+import com.ichi2.libanki.Decks;
+import com.ichi2.libanki.Sched;
+import com.ichi2.libanki.Storage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compares the in-memory counts of DeckCounts with libanki's _walkingCount, which asks the database once per deck,
+ * over a fixture collection with nested decks, differing daily limits and cards due today and later.
+ * <p>
+ * Run with: adb shell am instrument -w -e class com.ichi2.libanki.test.DeckCountsTest
+ * com.ichi2.anki2/android.test.InstrumentationTestRunner
+ */
+public class DeckCountsTest extends AndroidTestCase {
+
+    private static final String[] DECKS = { "A", "A::B", "A::B::C", "A::D", "E" };
+
+    private File mDir;
+    private Collection mCol;
+    private Sched mSched;
+    private long mNextCid = 1;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "deckcounts-test");
+        _delete(mDir);
+        mCol = Storage.Collection(new File(mDir, "collection.anki2").getPath());
+        mSched = mCol.getSched();
+        Decks decks = mCol.getDecks();
+        for (String name : DECKS) {
+            decks.id(name);
+        }
+        // a parent with a lower limit than its children, and a child with a lower limit than its parent
+        JSONObject small = decks.getConf(decks.confId("small"));
+        small.getJSONObject("new").put("perDay", 3);
+        small.getJSONObject("rev").put("perDay", 4);
+        decks.updateConf(small);
+        decks.setConf(decks.get(decks.id("A::B")), small.getLong("id"));
+        JSONObject large = decks.getConf(decks.confId("large"));
+        large.getJSONObject("new").put("perDay", 50);
+        large.getJSONObject("rev").put("perDay", 60);
+        decks.updateConf(large);
+        decks.setConf(decks.get(decks.id("A::B::C")), large.getLong("id"));
+        // some of the limit of A::D used up today
+        JSONObject d = decks.get(decks.id("A::D"));
+        d.getJSONArray("newToday").put(0, mSched.getToday());
+        d.getJSONArray("newToday").put(1, 15);
+        d.getJSONArray("revToday").put(0, mSched.getToday());
+        d.getJSONArray("revToday").put(1, 90);
+        decks.save(d);
+
+        int[][] cards = { { 5, 2, 1 }, { 10, 12, 3 }, { 70, 80, 20 }, { 8, 30, 0 }, { 0, 150, 5 } };
+        for (int i = 0; i < DECKS.length; i++) {
+            long did = decks.id(DECKS[i]);
+            _addCards(did, 0, cards[i][0], 0);
+            _addCards(did, 2, cards[i][1], mSched.getToday() - 1);
+            _addCards(did, 2, cards[i][2], mSched.getToday() + 3);
+        }
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCol.close(false);
+        _delete(mDir);
+        super.tearDown();
+    }
+
+
+    public void testSubtreesMatchWalkingCount() throws JSONException {
+        _assertMatchesLegacy(new DeckCounts(mSched));
+    }
+
+
+    public void testAdjustedCountsMatchWalkingCount() throws JSONException {
+        DeckCounts counts = new DeckCounts(mSched);
+        long c = mCol.getDecks().id("A::B::C");
+        long e = mCol.getDecks().id("E");
+        // move a new card into review, as answering it would, and a review card of C to E
+        long cid = mCol.getDb().queryLongScalar("SELECT id FROM cards WHERE did = " + c + " AND queue = 0 LIMIT 1");
+        counts.adjust(c, 0, 0, 0, -1);
+        mCol.getDb().execute("UPDATE cards SET queue = 2, type = 2, due = " + mSched.getToday() + " WHERE id = " + cid);
+        counts.adjust(c, 2, mSched.getToday(), 0, 1);
+        cid = mCol.getDb().queryLongScalar("SELECT id FROM cards WHERE did = " + c + " AND queue = 2 LIMIT 1");
+        String where = "id = " + cid;
+        counts.remove(where);
+        mCol.getDb().execute("UPDATE cards SET did = " + e + " WHERE " + where);
+        counts.add(where);
+        _assertMatchesLegacy(counts);
+    }
+
+
+    private void _assertMatchesLegacy(DeckCounts counts) throws JSONException {
+        for (String name : DECKS) {
+            long[] dids = counts.subtree(mCol.getDecks().id(name));
+            assertEquals("new cards of " + name, _legacyWalkingCount(dids, true), counts.walkingCountNew(dids));
+            assertEquals("review cards of " + name, _legacyWalkingCount(dids, false), counts.walkingCountRev(dids));
+        }
+        long[] all = mCol.getDecks().allIds();
+        assertEquals("new cards", _legacyWalkingCount(all, true), counts.walkingCountNew(all));
+        assertEquals("review cards", _legacyWalkingCount(all, false), counts.walkingCountRev(all));
+    }
+
+
+    /** libanki's _walkingCount, with the deck registry for the limits and one count query per deck. */
+    private int _legacyWalkingCount(long[] dids, boolean isNew) throws JSONException {
+        int tot = 0;
+        HashMap<Long, Integer> pcounts = new HashMap<Long, Integer>();
+        for (long did : dids) {
+            int lim = _limit(mCol.getDecks().get(did), isNew);
+            if (lim == 0) {
+                continue;
+            }
+            ArrayList<JSONObject> parents = mCol.getDecks().parents(did);
+            for (JSONObject p : parents) {
+                long id = p.getLong("id");
+                if (!pcounts.containsKey(id)) {
+                    pcounts.put(id, _limit(p, isNew));
+                }
+                lim = Math.min(pcounts.get(id), lim);
+            }
+            int cnt = mCol.getDb().queryScalar(
+                    "SELECT count() FROM (SELECT 1 FROM cards WHERE did = " + did
+                            + (isNew ? " AND queue = 0" : " AND queue = 2 AND due <= " + mSched.getToday())
+                            + " LIMIT " + lim + ")", false);
+            for (JSONObject p : parents) {
+                long id = p.getLong("id");
+                pcounts.put(id, pcounts.get(id) - cnt);
+            }
+            pcounts.put(did, lim - cnt);
+            tot += cnt;
+        }
+        return tot;
+    }
+
+
+    private int _limit(JSONObject g, boolean isNew) {
+        return isNew ? mSched._deckNewLimitSingle(g) : mSched._deckRevLimitSingle(g);
+    }
+
+
+    private void _addCards(long did, int queue, int count, int due) {
+        for (int i = 0; i < count; i++) {
+            long id = mNextCid++;
+            mCol.getDb().execute(
+                    "INSERT INTO cards VALUES (" + id + ", " + id + ", " + did + ", 0, 0, -1, " + queue + ", " + queue
+                            + ", " + (queue == 0 ? id : due) + ", 0, 2500, 0, 0, 0, 0, 0, 0, '')");
+        }
+    }
+
+
+    private void _delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                _delete(child);
+            }
+        }
+        f.delete();
+    }
+}
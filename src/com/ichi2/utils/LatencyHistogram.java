@@ -0,0 +1,96 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.utils;
+
+/**
+ * Counts durations in milliseconds into a fixed set of buckets, to see how long an operation takes in practice
+ * without keeping every sample.
+ */
+public class LatencyHistogram {
+
+    /** upper bounds (exclusive) of the buckets in ms; the last bucket takes everything above */
+    private static final int[] BOUNDS = { 10, 20, 50, 100, 200, 500, 1000, 2000 };
+
+    private int[] mBuckets = new int[BOUNDS.length + 1];
+    private int mCount;
+    private long mTotal;
+    private long mMax;
+
+
+    public synchronized void record(long ms) {
+        int i = 0;
+        while (i < BOUNDS.length && ms >= BOUNDS[i]) {
+            i++;
+        }
+        mBuckets[i]++;
+        mCount++;
+        mTotal += ms;
+        mMax = Math.max(mMax, ms);
+    }
+
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+
+    /** Mean of all samples in ms, or 0 without samples. */
+    public synchronized long getAverage() {
+        return mCount > 0 ? mTotal / mCount : 0;
+    }
+
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+
+    /** Number of samples in bucket I, see getBound(). */
+    public synchronized int getBucket(int i) {
+        return mBuckets[i];
+    }
+
+
+    /** Upper bound of bucket I in ms, or -1 for the last, open bucket. */
+    public static int getBound(int i) {
+        return i < BOUNDS.length ? BOUNDS[i] : -1;
+    }
+
+
+    public synchronized void clear() {
+        mBuckets = new int[BOUNDS.length + 1];
+        mCount = 0;
+        mTotal = 0;
+        mMax = 0;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("n=").append(mCount);
+        if (mCount > 0) {
+            sb.append(" avg=").append(mTotal / mCount).append("ms max=").append(mMax).append("ms");
+        }
+        for (int i = 0; i < mBuckets.length; i++) {
+            if (i < BOUNDS.length) {
+                sb.append(" <").append(BOUNDS[i]);
+            } else {
+                sb.append(" >=").append(BOUNDS[BOUNDS.length - 1]);
+            }
+            sb.append(":").append(mBuckets[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -42,6 +42,9 @@ public class Mustache
         /** Whether or not HTML entities are escaped by default. */
         public final boolean stripSpan;
 
+        /** Resolves the tag names when compiling, or null. */
+        public final TagResolver resolver;
+
         /** Compiles the supplied template into a repeatedly executable intermediate form. */
         public Template compile (String template)
         {
@@ -56,11 +59,17 @@ public class Mustache
 
         /** Returns a compiler that either does or does not escape HTML by default. */
         public Compiler stripSpan (boolean stripSpan) {
-            return new Compiler(stripSpan);
+            return new Compiler(stripSpan, resolver);
+        }
+
+        /** Returns a compiler that resolves every tag name with the supplied resolver. */
+        public Compiler withResolver (TagResolver resolver) {
+            return new Compiler(stripSpan, resolver);
         }
 
-        protected Compiler (boolean stripSpan) {
+        protected Compiler (boolean stripSpan, TagResolver resolver) {
             this.stripSpan = stripSpan;
+            this.resolver = resolver;
         }
     }
 
@@ -71,12 +80,29 @@ public class Mustache
         Object get (Object ctx, String name) throws Exception;
     }
 
+    /**
+     * Resolves a tag name once, when the template is compiled, into an object that is kept with
+     * the tag and handed to {@link BoundVariableFetcher}s whenever the template is executed.
+     */
+    public interface TagResolver
+    {
+        /** Returns the binding for the so-named tag, or null if it needs none. */
+        Object resolve (String name);
+    }
+
+    /** A VariableFetcher that reads variables through the bindings of a {@link TagResolver}. */
+    public interface BoundVariableFetcher extends VariableFetcher
+    {
+        /** Reads the so-named variable, which was resolved to BINDING when compiling. */
+        Object get (Object ctx, String name, Object binding) throws Exception;
+    }
+
     /**
      * Returns a compiler that escapes HTML by default.
      */
     public static Compiler compiler ()
     {
-        return new Compiler(true);
+        return new Compiler(true, null);
     }
 
     /**
@@ -289,7 +315,7 @@ public class Mustache
                     }
                     @Override protected Accumulator addCloseSectionSegment (String itag, int line) {
                         requireSameName(tag1, itag, line);
-                        outer._segs.add(new SectionSegment(itag, super.finish(), tagLine));
+                        outer._segs.add(new SectionSegment(itag, resolve(itag), super.finish(), tagLine));
                         return outer;
                     }
                 };
@@ -307,7 +333,8 @@ public class Mustache
                     }
                     @Override protected Accumulator addCloseSectionSegment (String itag, int line) {
                         requireSameName(tag1, itag, line);
-                        outer._segs.add(new InvertedSectionSegment(itag, super.finish(), tagLine));
+                        outer._segs.add(new InvertedSectionSegment(itag, resolve(itag), super.finish(),
+                                                                   tagLine));
                         return outer;
                     }
                 };
@@ -322,12 +349,12 @@ public class Mustache
 
             case '{':
                 requireNoNewlines(tag1, tagLine);
-                _segs.add(new VariableSegment(tag1, _compiler.stripSpan, tagLine));
+                _segs.add(new VariableSegment(tag1, resolve(tag1), _compiler.stripSpan, tagLine));
                 return this;
 
             default:
                 requireNoNewlines(tag, tagLine);
-                _segs.add(new VariableSegment(tag, false, tagLine));
+                _segs.add(new VariableSegment(tag, resolve(tag), false, tagLine));
                 return this;
             }
         }
@@ -336,6 +363,10 @@ public class Mustache
             return _segs.toArray(new Template.Segment[_segs.size()]);
         }
 
+        protected Object resolve (String name) {
+            return _compiler.resolver == null ? null : _compiler.resolver.resolve(name);
+        }
+
         protected Accumulator addCloseSectionSegment (String tag, int line) {
             throw new MustacheException("Section close tag with no open tag " +
                                         "[line=" + line + ", tag=" + tag + "]");
@@ -374,22 +405,24 @@ public class Mustache
 
     /** A helper class for named segments. */
     protected static abstract class NamedSegment extends Template.Segment {
-        protected NamedSegment (String name, int line) {
+        protected NamedSegment (String name, Object binding, int line) {
             _name = name;
+            _binding = binding;
             _line = line;
         }
         protected final String _name;
+        protected final Object _binding;
         protected final int _line;
     }
 
     /** A segment that substitutes the contents of a variable. */
     protected static class VariableSegment extends NamedSegment {
-        public VariableSegment (String name, boolean stripSpan, int line) {
-            super(name, line);
+        public VariableSegment (String name, Object binding, boolean stripSpan, int line) {
+            super(name, binding, line);
             _stripSpan = stripSpan;
         }
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out)  {
-            Object value = tmpl.getValue(ctx, _name, _line);
+            Object value = tmpl.getValue(ctx, _name, _binding, _line);
             if (value != null) {
                 String text = String.valueOf(value);
                 write(out, _stripSpan ? stripSpan(text) : text);
@@ -400,8 +433,8 @@ public class Mustache
 
     /** A helper class for compound segments. */
     protected static abstract class CompoundSegment extends NamedSegment {
-        protected CompoundSegment (String name, Template.Segment[] segs, int line) {
-            super(name, line);
+        protected CompoundSegment (String name, Object binding, Template.Segment[] segs, int line) {
+            super(name, binding, line);
             _segs = segs;
         }
         protected void executeSegs (Template tmpl, Template.Context ctx, Writer out)  {
@@ -414,11 +447,11 @@ public class Mustache
 
     /** A segment that represents a section. */
     protected static class SectionSegment extends CompoundSegment {
-        public SectionSegment (String name, Template.Segment[] segs, int line) {
-            super(name, segs, line);
+        public SectionSegment (String name, Object binding, Template.Segment[] segs, int line) {
+            super(name, binding, segs, line);
         }
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out)  {
-            Object value = tmpl.getValue(ctx, _name, _line);
+            Object value = tmpl.getValue(ctx, _name, _binding, _line);
             if (value == null) {
                 return; // TODO: configurable behavior on missing values
             }
@@ -456,11 +489,11 @@ public class Mustache
 
     /** A segment that represents an inverted section. */
     protected static class InvertedSectionSegment extends CompoundSegment {
-        public InvertedSectionSegment (String name, Template.Segment[] segs, int line) {
-            super(name, segs, line);
+        public InvertedSectionSegment (String name, Object binding, Template.Segment[] segs, int line) {
+            super(name, binding, segs, line);
         }
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out)  {
-            Object value = tmpl.getValue(ctx, _name, _line);
+            Object value = tmpl.getValue(ctx, _name, _binding, _line);
             if (value == null) {
                 executeSegs(tmpl, ctx, out); // TODO: configurable behavior on missing values
             }
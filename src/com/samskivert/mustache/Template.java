@@ -58,6 +58,17 @@ public class Template
         return out.toString();
     }
 
+    /**
+     * Executes this template with the given context, appending the results to the supplied
+     * builder. Lets callers reuse one buffer over many executions instead of allocating a new
+     * writer and string for each.
+     * @throws MustacheException if an error occurs while executing or writing the template.
+     */
+    public void execute (Object context, StringBuilder out) throws MustacheException
+    {
+        execute(context, new StringBuilderWriter(out));
+    }
+
     protected Template (Segment[] segs)
     {
         _segs = segs;
@@ -71,12 +82,17 @@ public class Template
      * @param name the name of the variable to be resolved
      */
     protected Object getValue (Context ctx, String name, int line) {
-        return getValue(ctx, name, line, null);
+        return getValue(ctx, name, null, line);
     }
-    protected Object getValue (Context ctx, String name, int line, String defaultValue)
+
+    /**
+     * Same as {@link #getValue(Context, String, int)}, handing BINDING, which the compiler's
+     * TagResolver returned for the variable, to fetchers that take one.
+     */
+    protected Object getValue (Context ctx, String name, Object binding, int line)
     {
         while (ctx != null) {
-            Object value = getValueIn(ctx.data, name, line);
+            Object value = getValueIn(ctx.data, name, binding, line);
             if (value != null) {
                 return value;
             }
@@ -84,10 +100,10 @@ public class Template
         }
         // Graceful failing, no need to throw exception
         Log.e(AnkiDroidApp.TAG, "Could not retrieve from context name '" + name + "' on line " + line);
-        return defaultValue;
+        return null;
     }
 
-    protected Object getValueIn (Object data, String name, int line)
+    protected Object getValueIn (Object data, String name, Object binding, int line)
     {
         if (data == null) {
             throw new NullPointerException(
@@ -108,6 +124,9 @@ public class Template
         }
 
         try {
+            if (binding != null && fetcher instanceof Mustache.BoundVariableFetcher) {
+                return ((Mustache.BoundVariableFetcher)fetcher).get(data, name, binding);
+            }
             Object value = fetcher.get(data, name);
             return value;
         } catch (Exception e) {
@@ -163,6 +182,34 @@ public class Template
         }
     }
 
+    /** Writes straight into a StringBuilder, without the locking of StringWriter's StringBuffer. */
+    protected static class StringBuilderWriter extends Writer
+    {
+        public StringBuilderWriter (StringBuilder out) {
+            _out = out;
+        }
+
+        @Override public void write (String str) {
+            _out.append(str);
+        }
+
+        @Override public void write (char[] cbuf, int off, int len) {
+            _out.append(cbuf, off, len);
+        }
+
+        @Override public void write (int c) {
+            _out.append((char)c);
+        }
+
+        @Override public void flush () {
+        }
+
+        @Override public void close () {
+        }
+
+        protected final StringBuilder _out;
+    }
+
     protected static final Mustache.VariableFetcher MAP_FETCHER =
         new Mustache.VariableFetcher() {
             public Object get (Object ctx, String name) throws Exception {
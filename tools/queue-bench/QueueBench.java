@@ -0,0 +1,119 @@
+/*
+ * Drains 10k cards through the new-card queue and re-inserts 10k learning cards into learning queues of 100 and
+ * 1000 cards, once with the LinkedList<long[]> code the scheduler used before and once with CardQueue/LrnQueue.
+ * Prints the best of 50 runs after 200 warm-up runs, and the bytes the last run allocated. See run.sh.
+ */
+
+import com.ichi2.libanki.CardQueue;
+import com.ichi2.libanki.LrnQueue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Random;
+
+public class QueueBench {
+    private static final int N = 10000;
+
+    private static com.sun.management.ThreadMXBean sMx =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static long sSink;
+
+
+    public static void main(String[] args) {
+        final long[] dues = new long[N];
+        Random rnd = new Random(1);
+        for (int i = 0; i < N; i++) {
+            dues[i] = 1000000 + rnd.nextInt(3600);
+        }
+        bench("old drain 10k (LinkedList<long[]>)", new Runnable() {
+            public void run() {
+                LinkedList<long[]> q = new LinkedList<long[]>();
+                for (int i = 0; i < N; i++) {
+                    q.add(new long[] { i });
+                }
+                while (!q.isEmpty()) {
+                    sSink += q.remove()[0];
+                }
+            }
+        });
+        final CardQueue cq = new CardQueue();
+        bench("new drain 10k (CardQueue)", new Runnable() {
+            public void run() {
+                cq.clear();
+                for (int i = 0; i < N; i++) {
+                    cq.add(i);
+                }
+                while (!cq.isEmpty()) {
+                    sSink += cq.remove();
+                }
+            }
+        });
+        for (final int size : new int[] { 100, 1000 }) {
+            bench("old lrn reinsert 10k, q=" + size, new Runnable() {
+                public void run() {
+                    LinkedList<long[]> q = new LinkedList<long[]>();
+                    for (int i = 0; i < size; i++) {
+                        q.add(new long[] { dues[i], i });
+                    }
+                    Collections.sort(q, new Comparator<long[]>() {
+                        public int compare(long[] x, long[] y) {
+                            return x[0] < y[0] ? -1 : (x[0] == y[0] ? 0 : 1);
+                        }
+                    });
+                    for (int i = 0; i < N; i++) {
+                        // the old _sortIntoLrn: walk to the first later card
+                        long[] c = q.removeFirst();
+                        long due = c[0] + dues[i] % 600;
+                        ListIterator<long[]> it = q.listIterator();
+                        int idx = 0;
+                        while (it.hasNext()) {
+                            if (it.next()[0] > due) {
+                                break;
+                            }
+                            idx++;
+                        }
+                        q.add(idx, new long[] { due, c[1] });
+                    }
+                    sSink += q.size();
+                }
+            });
+            final LrnQueue lq = new LrnQueue();
+            bench("new lrn reinsert 10k, q=" + size, new Runnable() {
+                public void run() {
+                    lq.clear();
+                    for (int i = 0; i < size; i++) {
+                        lq.add(dues[i], i);
+                    }
+                    for (int i = 0; i < N; i++) {
+                        long due = lq.getFirstDue() + dues[i] % 600;
+                        long id = lq.remove();
+                        lq.add(due, id);
+                    }
+                    sSink += lq.size();
+                }
+            });
+        }
+        System.out.println(sSink == 42 ? "" : "done");
+    }
+
+
+    private static void bench(String name, Runnable r) {
+        for (int i = 0; i < 200; i++) {
+            r.run();
+        }
+        long best = Long.MAX_VALUE;
+        long alloc = 0;
+        for (int i = 0; i < 50; i++) {
+            long a0 = sMx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long t = System.nanoTime();
+            r.run();
+            long d = System.nanoTime() - t;
+            alloc = sMx.getThreadAllocatedBytes(Thread.currentThread().getId()) - a0;
+            best = Math.min(best, d);
+        }
+        System.out.printf("%-36s %9.1f us %10d bytes allocated%n", name, best / 1000.0, alloc);
+    }
+}
@@ -0,0 +1,9 @@
+#!/bin/sh
+# Micro-benchmark of the scheduler queues: CardQueue and LrnQueue from src against the LinkedList<long[]> code
+# they replaced. Needs a desktop JDK 8 or later; the two queue classes have no Android dependencies.
+set -e
+cd "$(dirname "$0")"
+OUT=$(mktemp -d)
+javac -d "$OUT" ../../src/com/ichi2/libanki/CardQueue.java ../../src/com/ichi2/libanki/LrnQueue.java QueueBench.java
+java -cp "$OUT" QueueBench
+rm -rf "$OUT"
@@ -0,0 +1,102 @@
+/*
+ * Splits a synthetic corpus of 100k notes with 2 to 8 fields, a quarter of them empty, with the old regex based
+ * splitFields and the new Utils.splitFields, checks that both give the same fields for every note and for the
+ * empty-field edge cases, and times both.
+ * Then times 100k lookups over a working set of 400 notes, as when the reviewer renders and generates cards, with
+ * and without FieldCache. Prints the fifth of five rounds. See run.sh.
+ */
+
+import com.ichi2.libanki.FieldCache;
+import com.ichi2.libanki.Utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class SplitBench {
+    private static final int N = 100000;
+    private static long sSink;
+
+
+    /** Utils.splitFields as it was before */
+    private static String[] oldSplit(String fields) {
+        fields = fields.replaceAll("\\x1f\\x1f", "\u001f\u001e\u001f");
+        fields = fields.replaceAll("\\x1f$", "\u001f\u001e");
+        String[] split = fields.split("\\x1f");
+        for (int i = 0; i < split.length; i++) {
+            if (split[i].matches("\\x1e")) {
+                split[i] = "";
+            }
+        }
+        return split;
+    }
+
+
+    public static void main(String[] args) {
+        Random rnd = new Random(7);
+        String[] notes = new String[N];
+        for (int i = 0; i < N; i++) {
+            int nf = 2 + rnd.nextInt(7);
+            StringBuilder sb = new StringBuilder();
+            for (int f = 0; f < nf; f++) {
+                if (f > 0) {
+                    sb.append('\u001f');
+                }
+                int len = rnd.nextInt(4) == 0 ? 0 : rnd.nextInt(120);
+                for (int k = 0; k < len; k++) {
+                    sb.append((char) ('a' + rnd.nextInt(26)));
+                }
+            }
+            notes[i] = sb.toString();
+        }
+        // empty fields at either end, runs of separators and the old 0x1e placeholder; the last case is the one known
+        // difference: the old "\x1f$" matched before a final line terminator and left a stray 0x1e in that field
+        String[] edges = { "", "\u001f", "\u001f\u001f\u001f", "a\u001f", "\u001fa", "a\u001f\u001fb", "\u001e",
+                "a\u001f\u001e", "\u001e\u001fb", "a\u001f\u001e\u001fc", "a\u001f\n" };
+        for (String s : edges) {
+            boolean same = Arrays.equals(oldSplit(s), Utils.splitFields(s));
+            System.out.println("edge case " + Arrays.toString(s.toCharArray()).replace("\u001f", "<1f>")
+                    .replace("\u001e", "<1e>").replace("\n", "<nl>") + ": " + (same ? "same" : "DIFFERENT"));
+        }
+        int diff = 0;
+        for (String s : notes) {
+            if (!Arrays.equals(oldSplit(s), Utils.splitFields(s))) {
+                diff++;
+            }
+        }
+        System.out.println("corpus " + N + " notes, differing outputs: " + diff);
+        for (int round = 0; round < 5; round++) {
+            long t = System.nanoTime();
+            for (String s : notes) {
+                sSink += oldSplit(s).length;
+            }
+            long o = System.nanoTime() - t;
+            t = System.nanoTime();
+            for (String s : notes) {
+                sSink += Utils.splitFields(s).length;
+            }
+            long n = System.nanoTime() - t;
+            if (round == 4) {
+                System.out.printf("split 100k notes: old regex %.1f ms, new scan %.1f ms%n", o / 1e6, n / 1e6);
+            }
+        }
+        // the strings are copied, as each lookup reads the note from the database again
+        FieldCache cache = new FieldCache();
+        for (int round = 0; round < 5; round++) {
+            long t = System.nanoTime();
+            for (int i = 0; i < N; i++) {
+                sSink += Utils.splitFields(new String(notes[i % 400])).length;
+            }
+            long s1 = System.nanoTime() - t;
+            t = System.nanoTime();
+            for (int i = 0; i < N; i++) {
+                sSink += cache.get(i % 400, new String(notes[i % 400])).length;
+            }
+            long s2 = System.nanoTime() - t;
+            if (round == 4) {
+                System.out.printf("100k lookups over 400 notes: scan %.1f ms, FieldCache %.1f ms%n", s1 / 1e6,
+                        s2 / 1e6);
+            }
+        }
+        System.out.println(sSink == 42 ? "" : "done");
+    }
+}
@@ -0,0 +1,20 @@
+#!/bin/sh
+# Benchmark of Utils.splitFields and FieldCache against the regex based splitFields they replaced. Utils itself needs
+# Android, so splitFields and its helper are cut out of src/com/ichi2/libanki/Utils.java into a bare Utils class;
+# FieldCache is compiled from src as it is. Needs a desktop JDK.
+set -e
+cd "$(dirname "$0")"
+OUT=$(mktemp -d)
+mkdir -p "$OUT/src/com/ichi2/libanki"
+{
+    echo "package com.ichi2.libanki;"
+    echo "public class Utils {"
+    awk '/public static String\[\] splitFields\(/ { copy = 1 }
+         copy { print }
+         /private static String _field\(/ { last = 1 }
+         last && /^    }$/ { exit }' ../../src/com/ichi2/libanki/Utils.java
+    echo "}"
+} > "$OUT/src/com/ichi2/libanki/Utils.java"
+javac -d "$OUT" "$OUT/src/com/ichi2/libanki/Utils.java" ../../src/com/ichi2/libanki/FieldCache.java SplitBench.java
+java -cp "$OUT" SplitBench
+rm -rf "$OUT"
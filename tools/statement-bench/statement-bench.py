@@ -0,0 +1,91 @@
+#!/usr/bin/env python3
+# -*- coding: utf-8 -*-
+#
+# Benchmark of the SQLite side of the AnkiDb statement cache: 10k card flushes in one transaction, once as SQL with
+# the values concatenated in, compiled for every call as AnkiDb.execute() did, and once as one statement with bind
+# values, compiled once, as AnkiDb.executeStatement() does. The SQL is the one of Card.flushSched() and
+# Card.flush().
+#
+# This runs on the desktop with Python's sqlite3 module, not on Android: it measures what SQLite spends compiling
+# statements, which is the cost the cache removes. It does not include the Java side, e.g. the lowercase and prefix
+# scan execute() did on every call, and a phone is several times slower in absolute terms.
+#
+# Usage: statement-bench.py
+
+import random
+import sqlite3
+import time
+
+CARDS = 10000
+SCHEMA = ("CREATE TABLE cards (id integer primary key, nid integer not null, did integer not null, "
+          "ord integer not null, mod integer not null, usn integer not null, type integer not null, "
+          "queue integer not null, due integer not null, ivl integer not null, factor integer not null, "
+          "reps integer not null, lapses integer not null, left integer not null, odue integer not null, "
+          "odid integer not null, flags integer not null, data text not null)")
+UPDATE = ("UPDATE cards SET mod = ?, usn = ?, type = ?, queue = ?, due = ?, ivl = ?, factor = ?, reps = ?, "
+          "lapses = ?, left = ?, odue = ?, odid = ?, did = ? WHERE id = ?")
+REPLACE = "INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)"
+
+rnd = random.Random(3)
+ids = [rnd.randrange(CARDS) for _ in range(CARDS)]
+
+
+def setup():
+    db = sqlite3.connect(":memory:", isolation_level=None)
+    db.execute(SCHEMA)
+    db.executemany(REPLACE, [(i, i, 1, 0, 0, 0, 2, 2, 100, 10, 2500, 5, 0, 0, 0, 0, 0, "") for i in range(CARDS)])
+    return db
+
+
+def sched_values(i):
+    return (1000 + i, -1, 2, 2, 200 + i, 20, 2500, 6, 0, 0, 0, 0, 1, i)
+
+
+def card_values(i):
+    return (i, i, 1, 0, 1000 + i, -1, 2, 2, 200 + i, 20, 2500, 6, 0, 0, 0, 0, 0, "")
+
+
+def update_concatenated(db):
+    for i in ids:
+        v = sched_values(i)
+        db.execute("UPDATE cards SET mod = %d, usn = %d, type = %d, queue = %d, due = %d, ivl = %d, factor = %d, "
+                   "reps = %d, lapses = %d, left = %d, odue = %d, odid = %d, did = %d WHERE id = %d" % v)
+
+
+def update_bound(db):
+    for i in ids:
+        db.execute(UPDATE, sched_values(i))
+
+
+def replace_concatenated(db):
+    for i in ids:
+        v = card_values(i)
+        db.execute("INSERT OR REPLACE INTO cards VALUES (%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,'%s')" % v)
+
+
+def replace_bound(db):
+    for i in ids:
+        db.execute(REPLACE, card_values(i))
+
+
+def best_ms(flush):
+    best = None
+    for _ in range(5):
+        db = setup()
+        start = time.perf_counter()
+        db.execute("BEGIN")
+        flush(db)
+        db.execute("COMMIT")
+        elapsed = (time.perf_counter() - start) * 1000
+        best = elapsed if best is None else min(best, elapsed)
+        db.close()
+    return best
+
+
+if __name__ == "__main__":
+    print("SQLite %s, best of 5, %d flushes each" % (sqlite3.sqlite_version, CARDS))
+    for name, flush in (("flushSched, concatenated SQL", update_concatenated),
+                        ("flushSched, compiled once with binds", update_bound),
+                        ("flush, concatenated SQL", replace_concatenated),
+                        ("flush, compiled once with binds", replace_bound)):
+        print("%-38s %7.1f ms" % (name, best_ms(flush)))
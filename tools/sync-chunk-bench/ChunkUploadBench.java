@@ -0,0 +1,207 @@
+/*
+ * Client side of the chunk upload check, see stand-in-server.py. It writes chunks the way Syncer.chunk() does
+ * (JSON rows up to a byte budget, gzipped into a spool file) and posts them like BasicHttpSyncer, with a
+ * Content-Length. Mode "ahead" writes the next chunk while a single sender thread has the previous one in flight,
+ * as Syncer.sendChunks() does; mode "serial" writes and sends one chunk after the other, as before.
+ *
+ * The rows are made up; the time to read them from the database on the phone is simulated with WRITE_MS per chunk.
+ *
+ * javac -cp ../../libs/google-gson-stream-2.1.jar ChunkUploadBench.java
+ * java -cp ../../libs/google-gson-stream-2.1.jar:. ChunkUploadBench http://localhost:8001/ ahead|serial [ROWS] [WRITE_MS]
+ */
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+public class ChunkUploadBench {
+    private static final String BOUNDARY = "Anki-sync-boundary";
+    private static final long BUDGET = 256 * 1024;
+
+    private static String sUrl;
+    private static int sRows;
+    private static int sNext = 0;
+    private static long sWriteMs;
+
+
+    public static void main(String[] args) throws Exception {
+        sUrl = args[0] + "sync/applyChunk";
+        boolean ahead = args[1].equals("ahead");
+        sRows = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        sWriteMs = args.length > 3 ? Long.parseLong(args[3]) : 300;
+        long start = System.currentTimeMillis();
+        int chunks = ahead ? sendAhead() : sendSerial();
+        System.out.println(args[1] + ": " + sRows + " rows in " + chunks + " chunks took "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    private static int sendSerial() throws IOException {
+        int chunks = 0;
+        boolean done = false;
+        while (!done) {
+            File chunk = File.createTempFile("chunk", ".tmp");
+            done = writeChunk(chunk);
+            send(chunk);
+            chunks++;
+        }
+        return chunks;
+    }
+
+
+    private static int sendAhead() throws Exception {
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        Future<Void> inFlight = null;
+        int chunks = 0;
+        boolean done = false;
+        try {
+            while (true) {
+                File next = null;
+                if (!done) {
+                    next = File.createTempFile("chunk", ".tmp");
+                    done = writeChunk(next);
+                }
+                if (inFlight != null) {
+                    inFlight.get();
+                    inFlight = null;
+                }
+                if (next == null) {
+                    return chunks;
+                }
+                final File chunk = next;
+                inFlight = sender.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        send(chunk);
+                        return null;
+                    }
+                });
+                chunks++;
+            }
+        } finally {
+            sender.shutdownNow();
+        }
+    }
+
+
+    /** Write the next rows into FILE, gzipped, until about BUDGET bytes of JSON. Returns whether it was the last. */
+    private static boolean writeChunk(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        CountingOutputStream counter = new CountingOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 32768)));
+        counter.write("{\"chunk\": ".getBytes("UTF-8"));
+        JsonWriter w = new JsonWriter(new OutputStreamWriter(counter, "UTF-8"));
+        w.beginObject();
+        w.name("notes");
+        w.beginArray();
+        while (counter.mCount < BUDGET && sNext < sRows) {
+            w.beginArray();
+            w.value(1300000000000L + sNext);
+            w.value("guid" + sNext);
+            w.value(1342697561L);
+            w.value(-1);
+            w.value("tag" + (sNext % 50));
+            w.value("front side of note " + sNext + "\u001fback side of note " + sNext + " with some more text");
+            w.endArray();
+            sNext++;
+        }
+        w.endArray();
+        w.name("done");
+        w.value(sNext == sRows);
+        w.endObject();
+        w.flush();
+        counter.write('}');
+        counter.close();
+        // the database reads of the real chunk() take time as well
+        long left = sWriteMs - (System.currentTimeMillis() - start);
+        if (left > 0) {
+            try {
+                Thread.sleep(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return sNext == sRows;
+    }
+
+
+    /** Post FILE as the payload of a multipart request like BasicHttpSyncer._send(), then delete it. */
+    private static void send(File file) throws IOException {
+        try {
+            String bdry = "--" + BOUNDARY;
+            byte[] head = (bdry + "\r\nContent-Disposition: form-data; name=\"c\"\r\n\r\n1\r\n" + bdry + "\r\n"
+                    + "Content-Disposition: form-data; name=\"k\"\r\n\r\nhkey\r\n" + bdry + "\r\n"
+                    + "Content-Disposition: form-data; name=\"data\"; filename=\"data\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes("UTF-8");
+            byte[] tail = ("\r\n" + bdry + "--\r\n").getBytes("UTF-8");
+            HttpURLConnection con = (HttpURLConnection) new URL(sUrl).openConnection();
+            con.setDoOutput(true);
+            con.setRequestMethod("POST");
+            con.setRequestProperty("Content-type", "multipart/form-data; boundary=" + BOUNDARY);
+            con.setFixedLengthStreamingMode((int) (head.length + file.length() + tail.length));
+            OutputStream out = con.getOutputStream();
+            out.write(head);
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[32768];
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+            out.write(tail);
+            out.close();
+            if (con.getResponseCode() != 200) {
+                throw new IOException("server refused the chunk: " + con.getResponseMessage());
+            }
+            InputStream res = con.getInputStream();
+            while (res.read() != -1) {
+                // answer is "null"
+            }
+            res.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount = 0;
+
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+}
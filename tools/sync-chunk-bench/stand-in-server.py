@@ -0,0 +1,87 @@
+#!/usr/bin/env python3
+# -*- coding: utf-8 -*-
+#
+# Stand-in for the applyChunk call of the sync server, to check the chunk upload of Syncer.sendChunks() on a
+# local machine. It answers like AnkiWeb ("null") after LATENCY ms and checks every request on the way:
+#  - the body has a Content-Length and is not sent chunked,
+#  - the payload is gzipped JSON of the form {"chunk": {..., "done": bool}},
+#  - no chunk arrives after the one with "done": true.
+# For each chunk it prints its size, its rows and the gap between the previous answer and the arrival of this
+# request. With the one-ahead upload the gap stays near zero, since the next chunk is already written while the
+# previous one is in flight; a serial upload shows the time to write each chunk instead.
+#
+# Usage: stand-in-server.py [PORT] [LATENCY_MS]
+# Then point ChunkUploadBench (or a debug build with Collection.SYNC_URL changed) at http://localhost:PORT/
+
+import gzip
+import json
+import sys
+import time
+from http.server import BaseHTTPRequestHandler, HTTPServer
+
+PORT = int(sys.argv[1]) if len(sys.argv) > 1 else 8001
+LATENCY = (int(sys.argv[2]) if len(sys.argv) > 2 else 300) / 1000.0
+
+state = {"done": False, "answered": None, "chunks": 0}
+
+
+def fail(handler, reason):
+    print("FAIL: " + reason)
+    handler.send_response(400, reason)
+    handler.end_headers()
+
+
+def form_fields(body, boundary):
+    fields = {}
+    for part in body.split(b"--" + boundary):
+        if b"\r\n\r\n" not in part:
+            continue
+        head, value = part.split(b"\r\n\r\n", 1)
+        name = head.split(b'name="', 1)[1].split(b'"', 1)[0].decode("ascii")
+        fields[name] = value[:-2] if value.endswith(b"\r\n") else value
+    return fields
+
+
+class Handler(BaseHTTPRequestHandler):
+    def do_POST(self):
+        arrived = time.time()
+        if self.path != "/sync/applyChunk":
+            return fail(self, "unexpected call " + self.path)
+        if self.headers.get("Transfer-Encoding", "").lower() == "chunked":
+            return fail(self, "chunked request body")
+        if self.headers.get("Content-Length") is None:
+            return fail(self, "no Content-Length")
+        body = self.rfile.read(int(self.headers["Content-Length"]))
+        boundary = self.headers["Content-Type"].split("boundary=", 1)[1].encode("ascii")
+        fields = form_fields(body, boundary)
+        data = fields["data"]
+        if fields.get("c") == b"1":
+            data = gzip.decompress(data)
+        chunk = json.loads(data.decode("utf-8"))["chunk"]
+        if state["done"]:
+            return fail(self, "chunk after the last one")
+        state["done"] = chunk["done"]
+        state["chunks"] += 1
+        rows = sum(len(chunk[t]) for t in ("revlog", "cards", "notes") if t in chunk)
+        gap = "" if state["answered"] is None else "%5d ms" % ((arrived - state["answered"]) * 1000)
+        print("chunk %3d: %8d bytes sent, %8d bytes json, %6d rows, gap %s%s" % (
+            state["chunks"], len(fields["data"]), len(data), rows, gap, ", done" if chunk["done"] else ""))
+        time.sleep(LATENCY)
+        self.send_response(200)
+        self.send_header("Content-Length", "4")
+        self.end_headers()
+        self.wfile.write(b"null")
+        self.wfile.flush()
+        state["answered"] = time.time()
+        if chunk["done"]:
+            state["done"] = False
+            state["answered"] = None
+            state["chunks"] = 0
+
+    def log_message(self, format, *args):
+        pass
+
+
+if __name__ == "__main__":
+    print("applyChunk stand-in on port %d, %d ms per chunk" % (PORT, LATENCY * 1000))
+    HTTPServer(("localhost", PORT), Handler).serve_forever()